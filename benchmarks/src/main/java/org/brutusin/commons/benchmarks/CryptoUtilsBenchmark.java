@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.brutusin.commons.utils.CryptoUtils;
+import org.brutusin.commons.utils.Miscellaneous;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link CryptoUtils} hashing of strings of different lengths.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoUtilsBenchmark {
+
+    @Param({"16", "1024", "65536"})
+    public int length;
+
+    private String str;
+
+    @Setup
+    public void setup() {
+        this.str = Miscellaneous.append("x", length);
+    }
+
+    @Benchmark
+    public String md5() {
+        return CryptoUtils.getHashMD5(str);
+    }
+
+    @Benchmark
+    public String sha512() {
+        return CryptoUtils.getHash512(str);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.brutusin.commons.io.DelimitedLineReader;
+import org.brutusin.commons.io.LineReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Summing the numeric fields of a tab-separated input of {@value #SIZE} bytes,
+ * with {@link DelimitedLineReader} and with {@code String.split} on a plain
+ * {@link LineReader}. MB/s is {@code SIZE / 2^20} times the reported ops/s.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DelimitedLineReaderBenchmark {
+
+    public static final int SIZE = 32 * 1024 * 1024;
+    public static final int FIELDS = 8;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(0);
+        StringBuilder line = new StringBuilder();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(SIZE + 1024);
+        while (baos.size() < SIZE) {
+            line.setLength(0);
+            for (int i = 0; i < FIELDS; i++) {
+                if (i > 0) {
+                    line.append('\t');
+                }
+                line.append(random.nextInt(1000000));
+            }
+            line.append('\n');
+            baos.write(line.toString().getBytes("UTF-8"));
+        }
+        this.data = baos.toByteArray();
+    }
+
+    @Benchmark
+    public void fields(final Blackhole bh) throws IOException, InterruptedException {
+        new DelimitedLineReader(new ByteArrayInputStream(data), "UTF-8", '\t', DelimitedLineReader.NO_QUOTE) {
+            @Override
+            protected void processFields(Fields fields) throws Exception {
+                long sum = 0;
+                for (int i = 0; i < fields.size(); i++) {
+                    sum += fields.getLong(i);
+                }
+                bh.consume(sum);
+            }
+
+            @Override
+            protected void onExceptionFound(Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        }.run();
+    }
+
+    @Benchmark
+    public void split(final Blackhole bh) throws IOException, InterruptedException {
+        new LineReader(new ByteArrayInputStream(data), "UTF-8") {
+            @Override
+            protected void processLine(String line) throws Exception {
+                long sum = 0;
+                for (String field : line.split("\t")) {
+                    sum += Long.parseLong(field);
+                }
+                bh.consume(sum);
+            }
+
+            @Override
+            protected void onExceptionFound(Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        }.run();
+    }
+}
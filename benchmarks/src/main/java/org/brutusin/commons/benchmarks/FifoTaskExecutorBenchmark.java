@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.brutusin.commons.concurrent.FifoTask;
+import org.brutusin.commons.concurrent.FifoTaskExecutor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput and average latency of a batch of {@link FifoTask} executions,
+ * for different amounts of work per task and thread counts. The executor is
+ * created once per trial, so its creation is not measured.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FifoTaskExecutorBenchmark {
+
+    private static final int TASKS = 10000;
+
+    /**
+     * Amount of CPU work of each runParallel(), in Blackhole tokens
+     */
+    @Param({"0", "1000", "100000"})
+    public int taskSize;
+
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    private FifoTaskExecutor<Integer> executor;
+
+    @Setup
+    public void setup() {
+        this.executor = new FifoTaskExecutor<Integer>(threads);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        this.executor.shutdown();
+        this.executor.awaitTermination(1, TimeUnit.DAYS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void execute(final Blackhole bh) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(TASKS);
+        for (int i = 0; i < TASKS; i++) {
+            final int index = i;
+            executor.execute(new FifoTask<Integer>() {
+                public Integer runParallel() {
+                    Blackhole.consumeCPU(taskSize);
+                    return index;
+                }
+
+                public void runSequential(Integer e) {
+                    bh.consume(e);
+                    done.countDown();
+                }
+
+                public void onError(Throwable th) {
+                    bh.consume(th);
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+}
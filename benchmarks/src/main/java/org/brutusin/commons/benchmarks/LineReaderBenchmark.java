@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.brutusin.commons.io.LineReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link LineReader#run()} over an in-memory input of {@value #SIZE} bytes.
+ * MB/s is {@code SIZE / 2^20} times the reported ops/s.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineReaderBenchmark {
+
+    public static final int SIZE = 32 * 1024 * 1024;
+
+    @Param({"16", "128", "1024"})
+    public int lineLength;
+
+    @Param({"UTF-8", "ISO-8859-1", "UTF-16"})
+    public String charset;
+
+    /**
+     * Whether lines contain non ASCII characters
+     */
+    @Param({"false", "true"})
+    public boolean nonAscii;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(0);
+        StringBuilder line = new StringBuilder();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(SIZE + lineLength * 4);
+        while (baos.size() < SIZE) {
+            line.setLength(0);
+            for (int i = 0; i < lineLength; i++) {
+                if (nonAscii && i % 10 == 0) {
+                    line.append('ñ');
+                } else {
+                    line.append((char) ('a' + random.nextInt(26)));
+                }
+            }
+            line.append('\n');
+            baos.write(line.toString().getBytes(charset));
+        }
+        this.data = baos.toByteArray();
+    }
+
+    @Benchmark
+    public void run(final Blackhole bh) throws IOException, InterruptedException {
+        LineReader lr = new LineReader(new ByteArrayInputStream(data), charset) {
+            @Override
+            protected void processLine(String line) throws Exception {
+                bh.consume(line);
+            }
+
+            @Override
+            protected void onExceptionFound(Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        };
+        lr.run();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.brutusin.commons.utils.Miscellaneous;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Miscellaneous#pipeSynchronously(java.io.InputStream, boolean, OutputStream...)}
+ * of {@value #SIZE} bytes to a number of null sinks. MB/s is
+ * {@code SIZE / 2^20} times the reported ops/s.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipeBenchmark {
+
+    public static final int SIZE = 8 * 1024 * 1024;
+
+    @Param({"1", "3"})
+    public int sinks;
+
+    private byte[] data;
+    private OutputStream[] os;
+
+    @Setup
+    public void setup() {
+        this.data = new byte[SIZE];
+        Random random = new Random(0);
+        random.nextBytes(data);
+        // no zero bytes, so that any implementation pipes the whole input
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == 0) {
+                data[i] = 1;
+            }
+        }
+        this.os = new OutputStream[sinks];
+        for (int i = 0; i < sinks; i++) {
+            os[i] = new NullOutputStream();
+        }
+    }
+
+    @Benchmark
+    public long pipeSynchronously() throws IOException, InterruptedException {
+        return Miscellaneous.pipeSynchronously(new ByteArrayInputStream(data), false, os);
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.concurrent;
+
+import java.util.List;
+
+/**
+ * Sequential consumer of contiguous outcomes of a {@link FifoTaskExecutor},
+ * see {@link FifoTaskExecutor#setBatchConsumer(BatchConsumer, int, long, java.util.concurrent.TimeUnit)}.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ * @param <E> outcome type
+ */
+public interface BatchConsumer<E> {
+
+    /**
+     * Method to be run sequentially, instead of
+     * {@link FifoTask#runSequential(Object)}.
+     *
+     * @param batch outcomes returned by {@link FifoTask#runParallel()}, in
+     * submission order. The list is reused between calls, so it must not be
+     * retained
+     */
+    public void consume(List<E> batch);
+}
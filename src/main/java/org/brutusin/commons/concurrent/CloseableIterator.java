@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.concurrent;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterator holding resources that are released by {@link #close()}, either
+ * when it is no longer needed or when it is exhausted.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ * @param <E> element type
+ */
+public interface CloseableIterator<E> extends Iterator<E>, Closeable {
+
+    /**
+     * Releases the resources of this iterator. Following calls to
+     * {@link #hasNext()} return {@code false}. Calling it more than once has
+     * no effect.
+     */
+    @Override
+    public void close();
+}
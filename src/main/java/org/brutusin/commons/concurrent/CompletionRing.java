@@ -0,0 +1,441 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ordering engine of {@link FifoTaskExecutor}.
+ * <br><br>
+ * Tasks are given consecutive sequence numbers and their outcomes are stored
+ * in a preallocated ring of slots indexed by {@code sequence & mask}. Any
+ * thread publishing an outcome tries to become the single drainer (CAS on a
+ * work-in-progress counter) and, if it succeeds, runs the sequential callbacks
+ * of all the contiguous completed slots. Threads losing the race simply
+ * return: the current drainer is guaranteed to see their outcome.
+ * <br><br>
+ * The number of claimed and not yet drained slots is bounded by a semaphore,
+ * so a slot is never reused before it has been consumed. Optionally, claims
+ * are also held back while the total weight of the completed outcomes
+ * waiting for their predecessors exceeds a maximum.
+ * <br><br>
+ * If a {@link BatchConsumer} is set, the drainer accumulates the contiguous
+ * successful outcomes and hands them over in a single call. When the batch is
+ * not full and lingering is enabled, the drainer leaves it to the next
+ * publisher and schedules a drain at the batch deadline, instead of waiting.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+final class CompletionRing<E> {
+
+    private static final Logger LOGGER = Logger.getLogger(FifoTaskExecutor.class.getName());
+
+    private static ScheduledExecutorService lingerScheduler;
+
+    private final Slot<E>[] slots;
+    private final int mask;
+    private final Semaphore permits;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final long maxBufferedWeight;
+    private final AtomicLong bufferedWeight = new AtomicLong();
+    private final AtomicInteger weightWaiters = new AtomicInteger();
+    private final Object weightMonitor = new Object();
+    private volatile Runnable releaseListener;
+    private volatile BatchConsumer<E> batchConsumer;
+    private volatile int maxBatchSize;
+    private volatile long lingerNanos;
+    private volatile boolean lingerStopped;
+    private volatile FifoTaskExecutorMetrics metrics;
+    /**
+     * Only accessed by the drainer.
+     */
+    private final List<E> batch = new ArrayList<E>();
+    private long batchDeadline;
+    private boolean flushScheduled;
+
+    /**
+     * Next sequence to drain. Only accessed by the drainer, handed-off between
+     * drainers through {@code wip}.
+     */
+    private long head;
+    /**
+     * Copy of {@code head} readable by the publishers, only maintained when
+     * metrics are set.
+     */
+    private volatile long drainedHead;
+
+    /**
+     * @param capacity maximum number of claimed and not yet drained tasks
+     */
+    CompletionRing(int capacity) {
+        this(capacity, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity maximum number of claimed and not yet drained tasks
+     * @param maxBufferedWeight weight of the buffered outcomes above which
+     * claims block
+     */
+    CompletionRing(int capacity, long maxBufferedWeight) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Slot<E>[] array = new Slot[size];
+        this.slots = array;
+        for (int i = 0; i < size; i++) {
+            this.slots[i] = new Slot<E>();
+        }
+        this.mask = size - 1;
+        this.permits = new Semaphore(capacity);
+        this.maxBufferedWeight = maxBufferedWeight;
+    }
+
+    /**
+     * Reserves the next slot for the task, blocking while the ring is full or
+     * the buffered weight is over the maximum.
+     *
+     * @param task
+     * @return the sequence number assigned to the task
+     * @throws InterruptedException
+     */
+    long claim(FifoTask<E> task) throws InterruptedException {
+        if (bufferedWeight.get() >= maxBufferedWeight) {
+            awaitWeight();
+        }
+        permits.acquire();
+        long seq = sequence.getAndIncrement();
+        slots[(int) seq & mask].task = task;
+        return seq;
+    }
+
+    /**
+     * Non-blocking version of {@link #claim(FifoTask)}.
+     *
+     * @param task
+     * @return the sequence number assigned to the task, or {@code -1} if the
+     * ring is full or the buffered weight is over the maximum
+     */
+    long tryClaim(FifoTask<E> task) {
+        if (bufferedWeight.get() >= maxBufferedWeight || !permits.tryAcquire()) {
+            return -1;
+        }
+        long seq = sequence.getAndIncrement();
+        slots[(int) seq & mask].task = task;
+        return seq;
+    }
+
+    /**
+     * Sets a listener to be notified by the drainer each time a slot is
+     * released.
+     *
+     * @param releaseListener
+     */
+    void setReleaseListener(Runnable releaseListener) {
+        this.releaseListener = releaseListener;
+    }
+
+    /**
+     * Sets the consumer of the successful outcomes. To be called before the
+     * first claim.
+     *
+     * @param batchConsumer
+     * @param maxBatchSize
+     * @param lingerNanos maximum time to wait for the next outcome before
+     * handing over a non-full batch
+     */
+    void setBatchConsumer(BatchConsumer<E> batchConsumer, int maxBatchSize, long lingerNanos) {
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = lingerNanos;
+        this.batchConsumer = batchConsumer;
+    }
+
+    /**
+     * Makes the pending and following batches to be handed over without
+     * lingering.
+     */
+    void stopLingering() {
+        this.lingerStopped = true;
+        drain();
+    }
+
+    /**
+     * Sets the metrics to record into. To be called before the first claim.
+     *
+     * @param metrics
+     */
+    void setMetrics(FifoTaskExecutorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Runs the parallel part of the claimed task and publishes its outcome.
+     *
+     * @param seq
+     * @param task
+     * @param weigher weigher of the outcome, may be {@code null}
+     * @param dispatchNanos {@code System.nanoTime()} when the task was handed
+     * over to the executor, only used if metrics are set
+     */
+    void run(long seq, FifoTask<E> task, Weigher<? super E> weigher, long dispatchNanos) {
+        FifoTaskExecutorMetrics m = metrics;
+        long start = 0;
+        if (m != null) {
+            start = System.nanoTime();
+            m.queueWaitTime.record(start - dispatchNanos);
+        }
+        E outcome = null;
+        Throwable error = null;
+        long weight = 0;
+        try {
+            outcome = task.runParallel();
+            if (weigher != null) {
+                weight = weigher.weigh(outcome);
+            }
+        } catch (Throwable th) {
+            error = th;
+        }
+        if (m != null) {
+            long end = System.nanoTime();
+            m.parallelTime.record(end - start);
+            if (error != null) {
+                m.errors.increment();
+            }
+            Slot<E> slot = slots[(int) seq & mask];
+            if (seq > drainedHead) {
+                // waits behind a predecessor not drained yet
+                slot.buffered = true;
+                m.bufferDepth.record(m.bufferedResults.incrementAndGet());
+            } else {
+                m.bufferDepth.record(m.bufferedResults.get());
+            }
+            slot.completedNanos = end;
+        }
+        complete(seq, outcome, error, weight);
+    }
+
+    /**
+     * Publishes the outcome of the task with the specified sequence number and
+     * drains the ring if possible.
+     *
+     * @param seq
+     * @param e outcome of {@code runParallel()}
+     * @param th error thrown by {@code runParallel()}, if any
+     * @param weight weight of the outcome
+     */
+    void complete(long seq, E e, Throwable th, long weight) {
+        Slot<E> slot = slots[(int) seq & mask];
+        slot.e = e;
+        slot.th = th;
+        if (weight > 0) {
+            slot.weight = weight;
+            bufferedWeight.addAndGet(weight);
+        }
+        slot.published = seq;
+        drain();
+    }
+
+    /**
+     * Releases a claimed slot whose task is not going to be run.
+     *
+     * @param seq
+     */
+    void cancel(long seq) {
+        Slot<E> slot = slots[(int) seq & mask];
+        slot.task = null;
+        slot.published = seq;
+        drain();
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        BatchConsumer<E> consumer = batchConsumer;
+        FifoTaskExecutorMetrics m = metrics;
+        int missed = 1;
+        for (;;) {
+            for (;;) {
+                Slot<E> slot = slots[(int) head & mask];
+                if (slot.published != head) {
+                    break;
+                }
+                FifoTask<E> task = slot.task;
+                E e = slot.e;
+                Throwable th = slot.th;
+                long weight = slot.weight;
+                long completedNanos = slot.completedNanos;
+                boolean buffered = slot.buffered;
+                slot.task = null;
+                slot.e = null;
+                slot.th = null;
+                slot.weight = 0;
+                slot.completedNanos = 0;
+                slot.buffered = false;
+                head++;
+                if (m != null) {
+                    drainedHead = head;
+                    if (buffered) {
+                        m.bufferedResults.decrementAndGet();
+                    }
+                    if (completedNanos != 0) {
+                        m.predecessorWaitTime.record(System.nanoTime() - completedNanos);
+                    }
+                }
+                permits.release();
+                if (weight > 0) {
+                    releaseWeight(weight);
+                }
+                Runnable listener = releaseListener;
+                if (listener != null) {
+                    listener.run();
+                }
+                if (task == null) {
+                    continue;
+                }
+                if (consumer == null) {
+                    runSequential(task, e, th, m);
+                } else if (th != null) {
+                    flush(consumer, m);
+                    runSequential(task, e, th, m);
+                } else {
+                    if (batch.isEmpty()) {
+                        batchDeadline = System.nanoTime() + lingerNanos;
+                    }
+                    batch.add(e);
+                    if (batch.size() >= maxBatchSize) {
+                        flush(consumer, m);
+                    }
+                }
+            }
+            if (consumer != null && !batch.isEmpty()) {
+                if (lingerStopped || System.nanoTime() - batchDeadline >= 0) {
+                    flush(consumer, m);
+                } else if (!flushScheduled) {
+                    flushScheduled = true;
+                    getLingerScheduler().schedule(new Runnable() {
+                        public void run() {
+                            drain();
+                        }
+                    }, batchDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void flush(BatchConsumer<E> consumer, FifoTaskExecutorMetrics m) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = m != null ? System.nanoTime() : 0;
+        try {
+            consumer.consume(batch);
+        } catch (Throwable t) {
+            LOGGER.log(Level.SEVERE, t.getMessage(), t);
+        } finally {
+            batch.clear();
+            flushScheduled = false;
+        }
+        if (m != null) {
+            m.sequentialTime.record(System.nanoTime() - start);
+        }
+    }
+
+    private void awaitWeight() throws InterruptedException {
+        weightWaiters.incrementAndGet();
+        try {
+            synchronized (weightMonitor) {
+                while (bufferedWeight.get() >= maxBufferedWeight) {
+                    weightMonitor.wait();
+                }
+            }
+        } finally {
+            weightWaiters.decrementAndGet();
+        }
+    }
+
+    private void releaseWeight(long weight) {
+        bufferedWeight.addAndGet(-weight);
+        if (weightWaiters.get() > 0) {
+            synchronized (weightMonitor) {
+                weightMonitor.notifyAll();
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getLingerScheduler() {
+        if (lingerScheduler == null) {
+            lingerScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "fifo-batch-linger");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return lingerScheduler;
+    }
+
+    private static <E> void runSequential(FifoTask<E> task, E e, Throwable th, FifoTaskExecutorMetrics m) {
+        long start = m != null ? System.nanoTime() : 0;
+        try {
+            if (th != null) {
+                task.onError(th);
+            } else {
+                task.runSequential(e);
+            }
+        } catch (Throwable t) {
+            LOGGER.log(Level.SEVERE, t.getMessage(), t);
+        }
+        if (m != null) {
+            m.sequentialTime.record(System.nanoTime() - start);
+        }
+    }
+
+    private static final class Slot<E> {
+
+        private FifoTask<E> task;
+        private E e;
+        private Throwable th;
+        private long weight;
+        private long completedNanos;
+        private boolean buffered;
+        /**
+         * Sequence number of the last outcome published in this slot. Written
+         * last, so that its volatile semantics publish the other fields.
+         */
+        private volatile long published = -1;
+    }
+}
@@ -15,38 +15,64 @@
  */
 package org.brutusin.commons.concurrent;
 
-import java.util.HashMap;
-import java.util.TreeMap;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Executes {@link FifoTask} tasks asynchronously keeping the output order,
  * using a pool of threads of size {@code maxThreads}.
  * <br><br>
  * A maximum of {@code maxThreads} (see {@link #FifoTaskExecutor(int)}) tasks
- * can be run concurrently. If more task are submitted,
- * {@link #execute(FifoTask)} blocks until a thread becomes available.
+ * can be run concurrently, and a maximum of {@code maxInFlight} tasks can be
+ * in progress (running or waiting for their predecessors to be sequentially
+ * processed). If more task are submitted, {@link #execute(FifoTask)} blocks
+ * until a slot becomes available.
+ * <br><br>
+ * Alternatively, instances created by {@link #newVirtualThreadExecutor(int)}
+ * run each task in its own (virtual, when supported by the JVM) thread, and
+ * the number of concurrent tasks is limited by a permit count instead, which
+ * suits tasks that mostly block on I/O.
+ * <br><br>
+ * Tasks can also be submitted without blocking by {@link #submit(FifoTask)},
+ * that returns a {@link CompletableFuture} of the sequential result.
+ * <br><br>
+ * Optionally, the successful outcomes can be handed over in ordered batches
+ * to a {@link BatchConsumer}, see
+ * {@link #setBatchConsumer(BatchConsumer, int, long, TimeUnit)}.
+ * <br><br>
+ * Outcomes are reordered in a preallocated ring indexed by submission
+ * sequence, and sequential callbacks are run by a single drainer thread at a
+ * time (elected with a CAS), so no global lock is taken in the completion
+ * path.
  *
  * @author Ignacio del Valle Alles idelvall@brutusin.org
  * @see FifoTask
  */
 public class FifoTaskExecutor<E> {
 
-    private final int maxThreads;
-    private final ThreadPoolExecutor threadPoolExecutor;
-    private final HashMap<Integer, FifoTask<E>> taskMap = new HashMap();
-    private final TreeMap<Integer, Result<E>> resultMap = new TreeMap();
+    /**
+     * Default size of the reorder window, as a multiple of the number of
+     * threads.
+     */
+    public static final int DEFAULT_WINDOW_FACTOR = 16;
 
-    private volatile int lastResult=-1;
-    private volatile int idCounter;
-    private volatile int activeCounter;
+    private final int maxThreads;
+    private final int maxInFlight;
+    private final ExecutorService executorService;
+    private final CompletionRing<E> ring;
+    private final Weigher<? super E> weigher;
+    private final ConcurrentLinkedQueue<FifoTask<E>> pending = new ConcurrentLinkedQueue<FifoTask<E>>();
+    private final AtomicInteger pumpWip = new AtomicInteger();
+    private volatile FifoTaskExecutorMetrics metrics;
 
     /**
      * Same as {@code FifoTaskExecutor(0, null)}
@@ -62,129 +88,372 @@ public class FifoTaskExecutor<E> {
         this(maxThreads, null);
     }
 
+    /**
+     * Same as {@code FifoTaskExecutor(maxThreads, 0, tf)}
+     */
+    public FifoTaskExecutor(int maxThreads, ThreadFactory tf) {
+        this(maxThreads, 0, tf);
+    }
+
+    /**
+     * Same as {@code FifoTaskExecutor(maxThreads, maxInFlight, null, 0, tf)}
+     */
+    public FifoTaskExecutor(int maxThreads, int maxInFlight, ThreadFactory tf) {
+        this(maxThreads, maxInFlight, null, 0, tf);
+    }
+
     /**
      * If {@code maxThreads == 0}, {@code maxThreads} is set to the number of
      * available processors returned by
      * {@code Runtime.getRuntime().availableProcessors()}.
+     * <br><br>
+     * {@code maxInFlight} is the size of the reorder window: the maximum
+     * number of submitted tasks whose sequential callback has not been run
+     * yet. Making it greater than {@code maxThreads} lets the threads go on
+     * with the following tasks while the head of the line is slow.
+     * <br><br>
+     * If a {@code weigher} is specified, submissions also block while the
+     * total weight of the outcomes waiting for their predecessors is over
+     * {@code maxBufferedWeight}.
      *
      * @param maxThreads number of maximum allowed threads.
+     * @param maxInFlight number of maximum tasks in progress. If {@code 0}, it
+     * is set to {@code DEFAULT_WINDOW_FACTOR * maxThreads}, so that, as when
+     * the outcomes waiting for their predecessors were not bounded, a slow
+     * head of the line does not stop the threads from running the following
+     * tasks. Use a {@code weigher} to bound the memory of these outcomes
+     * @param weigher weigher of the outcomes. If {@code null}, only
+     * {@code maxInFlight} bounds the buffered outcomes
+     * @param maxBufferedWeight maximum weight of the buffered outcomes. If
+     * {@code 0}, it is set to a tenth of
+     * {@code Runtime.getRuntime().maxMemory()}, assuming the weigher estimates
+     * sizes in bytes
      * @param tf the factory to use when the executor creates a new thread. If
      * {@code null}, {@link Executors#defaultThreadFactory()} is used.
-     * @throws IllegalArgumentException if {@code maxThreads < 0}
+     * @throws IllegalArgumentException if {@code maxThreads < 0},
+     * {@code maxInFlight} is lower than {@code maxThreads} or
+     * {@code maxBufferedWeight < 0}
      */
-    public FifoTaskExecutor(int maxThreads, ThreadFactory tf) {
+    public FifoTaskExecutor(int maxThreads, int maxInFlight, Weigher<? super E> weigher, long maxBufferedWeight, ThreadFactory tf) {
         if (maxThreads < 0) {
             throw new IllegalArgumentException("maxThreads can not be negative");
         } else if (maxThreads == 0) {
             maxThreads = Runtime.getRuntime().availableProcessors();
         }
+        if (maxInFlight == 0) {
+            maxInFlight = (int) Math.min(Integer.MAX_VALUE, (long) DEFAULT_WINDOW_FACTOR * maxThreads);
+        } else if (maxInFlight < maxThreads) {
+            throw new IllegalArgumentException("maxInFlight can not be lower than maxThreads");
+        }
         if (tf == null) {
             tf = Executors.defaultThreadFactory();
         }
         this.maxThreads = maxThreads;
-        this.threadPoolExecutor = new ThreadPoolExecutor(
+        this.maxInFlight = maxInFlight;
+        this.executorService = new ThreadPoolExecutor(
                 maxThreads,
                 maxThreads,
                 0L,
                 TimeUnit.MILLISECONDS,
                 new LinkedBlockingQueue<Runnable>(),
                 tf);
+        this.weigher = weigher;
+        this.ring = new CompletionRing<E>(maxInFlight, toMaxWeight(weigher, maxBufferedWeight));
+        this.ring.setReleaseListener(newPump());
+    }
+
+    private FifoTaskExecutor(ExecutorService executorService, int maxInFlight) {
+        this.maxThreads = maxInFlight;
+        this.maxInFlight = maxInFlight;
+        this.executorService = executorService;
+        this.weigher = null;
+        this.ring = new CompletionRing<E>(maxInFlight);
+        this.ring.setReleaseListener(newPump());
+    }
+
+    private Runnable newPump() {
+        return new Runnable() {
+            public void run() {
+                if (!pending.isEmpty()) {
+                    pump();
+                }
+            }
+        };
+    }
+
+    private static long toMaxWeight(Weigher<?> weigher, long maxBufferedWeight) {
+        if (maxBufferedWeight < 0) {
+            throw new IllegalArgumentException("maxBufferedWeight can not be negative");
+        }
+        if (weigher == null) {
+            return Long.MAX_VALUE;
+        }
+        if (maxBufferedWeight == 0) {
+            return Runtime.getRuntime().maxMemory() / 10;
+        }
+        return maxBufferedWeight;
     }
 
     /**
-     * @return Number of maximum allowed threads
+     * Creates an instance that runs each {@link FifoTask#runParallel()} in a
+     * new virtual thread. Submissions block in {@link #execute(FifoTask)} once
+     * {@code maxInFlight} tasks are in progress.
+     * <br><br>
+     * Virtual threads are used when the running JVM supports them (Java 21+).
+     * Otherwise tasks are run in a cached pool of platform threads that grows
+     * up to {@code maxInFlight} threads.
+     *
+     * @param <E> outcome type of the tasks
+     * @param maxInFlight number of maximum concurrent tasks
+     * @return a new instance
+     * @throws IllegalArgumentException if {@code maxInFlight <= 0}
+     */
+    public static <E> FifoTaskExecutor<E> newVirtualThreadExecutor(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        return new FifoTaskExecutor<E>(newThreadPerTaskExecutor(), maxInFlight);
+    }
+
+    /**
+     * Returns {@code Executors.newVirtualThreadPerTaskExecutor()} if available
+     * in the running JVM, or an unbounded cached thread pool otherwise.
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * @return Number of maximum allowed threads. For instances created by
+     * {@link #newVirtualThreadExecutor(int)} this is the number of permits,
+     * that is, the maximum number of concurrent tasks
      */
     public int getMaxThreads() {
         return maxThreads;
     }
 
     /**
-     * {@link ExecutorService#shutdown()}
+     * @return Number of maximum tasks in progress, that is, submitted and
+     * whose sequential callback has not been run yet
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * {@link ExecutorService#shutdown()}. Batches are no longer lingered, so
+     * that all the outcomes are handed over by the time
+     * {@link #awaitTermination(long, TimeUnit)} returns.
      */
     public void shutdown() {
-        threadPoolExecutor.shutdown();
+        executorService.shutdown();
+        ring.stopLingering();
+    }
+
+    /**
+     * Lets the pool threads terminate after being idle for the specified time,
+     * so that the threads of an instance that is never shut down are
+     * eventually released.
+     */
+    void setIdleTimeout(long timeout, TimeUnit unit) {
+        if (executorService instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor tpe = (ThreadPoolExecutor) executorService;
+            tpe.setKeepAliveTime(timeout, unit);
+            tpe.allowCoreThreadTimeOut(true);
+        }
     }
 
     /**
      * {@link ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)}
      */
     public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
-        return threadPoolExecutor.awaitTermination(timeout, unit);
-    }
-
-    private void processResults() {
-        synchronized (resultMap) {
-            while (!resultMap.isEmpty() && resultMap.firstKey() == lastResult + 1) {
-                Integer id = resultMap.firstKey();
-                Result<E> result = resultMap.remove(id);
-                FifoTask<E> task = taskMap.remove(id);
-                if (result.th != null) {
-                    task.onError(result.th);
-                } else {
-                    task.runSequential(result.e);
-                }
-                lastResult = id;
-            }
+        return executorService.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Enables or disables the recording of metrics, disabled by default. To
+     * be called before submitting tasks.
+     *
+     * @param enabled
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        FifoTaskExecutorMetrics m = enabled ? new FifoTaskExecutorMetrics() : null;
+        ring.setMetrics(m);
+        metrics = m;
+    }
+
+    /**
+     * @return the instrumentation of this instance, or {@code null} if metrics
+     * are not enabled
+     * @see #setMetricsEnabled(boolean)
+     */
+    public FifoTaskExecutorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Makes the contiguous successful outcomes to be passed in a single call
+     * to {@code batchConsumer}, instead of to the
+     * {@link FifoTask#runSequential(Object)} method of their tasks. Errors are
+     * still notified to {@link FifoTask#onError(Throwable)}, after handing
+     * over the outcomes preceding them.
+     * <br><br>
+     * A batch is handed over when it reaches {@code maxBatchSize} outcomes,
+     * or when the next outcome is not available after {@code linger} since
+     * the first outcome of the batch. To be called before submitting tasks.
+     * <br><br>
+     * Futures returned by {@link #submit(FifoTask)} are not completed for
+     * outcomes handed over to the batch consumer.
+     *
+     * @param batchConsumer
+     * @param maxBatchSize maximum number of outcomes per batch
+     * @param linger maximum time to wait for more outcomes, {@code 0} for no
+     * waiting
+     * @param unit time unit of {@code linger}
+     * @throws IllegalArgumentException if {@code maxBatchSize <= 0} or
+     * {@code linger < 0}
+     */
+    public void setBatchConsumer(BatchConsumer<E> batchConsumer, int maxBatchSize, long linger, TimeUnit unit) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        if (linger < 0) {
+            throw new IllegalArgumentException("linger can not be negative");
         }
+        ring.setBatchConsumer(batchConsumer, maxBatchSize, unit.toNanos(linger));
+    }
+
+    /**
+     * @return Number of tasks submitted by {@link #submit(FifoTask)} that are
+     * waiting for a free slot. Useful for producers to throttle themselves
+     * without blocking
+     */
+    public int getPending() {
+        return pending.size();
     }
 
     /**
-     * Executes the submitted task. If the maximum number of pooled threads is
-     * in use, this method blocks until one of a them is available.
+     * Executes the submitted task. If the maximum number of tasks in progress
+     * is reached, or the buffered outcomes are over the maximum weight, this
+     * method blocks until enough predecessors have been sequentially
+     * processed.
      *
      * @param task
      * @throws InterruptedException
      */
     public void execute(final FifoTask<E> task) throws InterruptedException {
-        final int id;
-        synchronized (this) {
-            id = idCounter++;
-            taskMap.put(id, task);
-            while (activeCounter >= maxThreads) {
-                wait();
-            }
-            activeCounter++;
+        FifoTaskExecutorMetrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        long seq = ring.claim(task);
+        if (m != null) {
+            m.submitterBlockedTime.record(System.nanoTime() - start);
+        }
+        try {
+            dispatch(seq, task);
+        } catch (RejectedExecutionException ex) {
+            ring.cancel(seq);
+            throw ex;
         }
+    }
 
-        this.threadPoolExecutor.execute(new Runnable() {
-            public void run() {
+    /**
+     * Submits the task without blocking. If there is no slot available, the
+     * task waits in an unbounded queue until enough predecessors have been
+     * sequentially processed.
+     * <br><br>
+     * The returned future is completed after the task sequential callback has
+     * been run: normally with the outcome of {@link FifoTask#runParallel()},
+     * or exceptionally with the error passed to
+     * {@link FifoTask#onError(Throwable)} (or thrown by the callback itself).
+     * Non-async dependent stages are run by the thread running the sequential
+     * callbacks, and so delay the following ones.
+     * <br><br>
+     * Submissions done by this method keep their order among them, but may be
+     * overtaken by concurrent calls to {@link #execute(FifoTask)}.
+     *
+     * @param task
+     * @return a future of the sequential result
+     */
+    public CompletableFuture<E> submit(final FifoTask<E> task) {
+        final CompletableFuture<E> future = new CompletableFuture<E>();
+        pending.add(new FifoTask<E>() {
+            public E runParallel() {
+                return task.runParallel();
+            }
+
+            public void runSequential(E e) {
                 try {
-                    try {
-                        final E outcome = task.runParallel();
-                        synchronized (resultMap) {
-                            resultMap.put(id, new Result(outcome));
-                        }
-                    } catch (Throwable th) {
-                        synchronized (resultMap) {
-                            resultMap.put(id, new Result(null, th));
-                        }
-                    } finally {
-                        processResults();
-                        synchronized (FifoTaskExecutor.this) {
-                            activeCounter--;
-                            FifoTaskExecutor.this.notifyAll();
-                        }
-                    }
-                } catch (Exception ex) {
-                    Logger.getLogger(FifoTaskExecutor.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+                    task.runSequential(e);
+                } catch (Throwable th) {
+                    future.completeExceptionally(th);
+                    return;
                 }
+                future.complete(e);
+            }
+
+            public void onError(Throwable th) {
+                try {
+                    task.onError(th);
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                    return;
+                }
+                future.completeExceptionally(th);
             }
         });
+        pump();
+        return future;
     }
 
-    private class Result<E> {
-
-        private final E e;
-        private final Throwable th;
-
-        public Result(E e) {
-            this.e = e;
-            this.th = null;
+    /**
+     * Moves pending submissions to the ring while there are free slots. Only
+     * one thread pumps at a time; concurrent requests make it loop again.
+     */
+    private void pump() {
+        if (pumpWip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (;;) {
+            FifoTask<E> task;
+            while ((task = pending.peek()) != null) {
+                long seq = ring.tryClaim(task);
+                if (seq < 0) {
+                    break;
+                }
+                pending.poll();
+                try {
+                    dispatch(seq, task);
+                } catch (RejectedExecutionException ex) {
+                    // notified in order, after the predecessors
+                    ring.complete(seq, null, ex, 0);
+                }
+            }
+            missed = pumpWip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
         }
+    }
 
-        public Result(E e, Throwable th) {
-            this.e = e;
-            this.th = th;
+    private void dispatch(final long seq, final FifoTask<E> task) {
+        FifoTaskExecutorMetrics m = metrics;
+        final long dispatchNanos;
+        if (m != null) {
+            m.submitted.increment();
+            dispatchNanos = System.nanoTime();
+        } else {
+            dispatchNanos = 0;
         }
+        this.executorService.execute(new Runnable() {
+            public void run() {
+                ring.run(seq, task, weigher, dispatchNanos);
+            }
+        });
     }
 }
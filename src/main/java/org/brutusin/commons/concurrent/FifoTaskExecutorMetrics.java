@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation of a {@link FifoTaskExecutor}, obtained by
+ * {@link FifoTaskExecutor#getMetrics()}, or of a
+ * {@link PartitionedFifoTaskExecutor}. All times are in nanoseconds.
+ * <br><br>
+ * Disabled by default, so that tiny tasks do not pay for the clock reads and
+ * counter updates, see {@link FifoTaskExecutor#setMetricsEnabled(boolean)}.
+ * <br><br>
+ * Helps telling where the time goes:
+ * <ul>
+ * <li>{@link #getSubmitterBlockedTime()}: time spent by submitters blocked in
+ * {@link FifoTaskExecutor#execute(FifoTask)} waiting for a free slot.</li>
+ * <li>{@link #getQueueWaitTime()}: time from submission to the start of
+ * {@link FifoTask#runParallel()}, waiting for a thread.</li>
+ * <li>{@link #getParallelTime()}: duration of {@link FifoTask#runParallel()}.</li>
+ * <li>{@link #getBufferDepth()}: number of completed results waiting for
+ * their predecessors, sampled on each completion. Results completed when
+ * all their predecessors had already been processed are not counted.</li>
+ * <li>{@link #getPredecessorWaitTime()}: time spent by completed results
+ * waiting for their predecessors (head-of-line blocking).</li>
+ * <li>{@link #getSequentialTime()}: duration of the sequential callbacks (of
+ * each batch, if a {@link BatchConsumer} is set).</li>
+ * </ul>
+ * Recording is lock-free. Metrics can be exported through JMX by
+ * {@link #registerMBean(String)}.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public final class FifoTaskExecutorMetrics implements FifoTaskExecutorMetricsMXBean {
+
+    final LongAdder submitted = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final AtomicLong bufferedResults = new AtomicLong();
+    final Histogram submitterBlockedTime = new Histogram();
+    final Histogram queueWaitTime = new Histogram();
+    final Histogram parallelTime = new Histogram();
+    final Histogram bufferDepth = new Histogram();
+    final Histogram predecessorWaitTime = new Histogram();
+    final Histogram sequentialTime = new Histogram();
+
+    private ObjectName objectName;
+
+    FifoTaskExecutorMetrics() {
+    }
+
+    /**
+     * @return number of submitted tasks
+     */
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    /**
+     * @return number of tasks whose {@code runParallel()} failed
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return current number of completed results waiting for their
+     * predecessors
+     */
+    public long getBufferedResults() {
+        return bufferedResults.get();
+    }
+
+    public Histogram.Snapshot getSubmitterBlockedTime() {
+        return submitterBlockedTime.snapshot();
+    }
+
+    public Histogram.Snapshot getQueueWaitTime() {
+        return queueWaitTime.snapshot();
+    }
+
+    public Histogram.Snapshot getParallelTime() {
+        return parallelTime.snapshot();
+    }
+
+    public Histogram.Snapshot getBufferDepth() {
+        return bufferDepth.snapshot();
+    }
+
+    public Histogram.Snapshot getPredecessorWaitTime() {
+        return predecessorWaitTime.snapshot();
+    }
+
+    public Histogram.Snapshot getSequentialTime() {
+        return sequentialTime.snapshot();
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server, under the name
+     * {@code org.brutusin.commons.concurrent:type=FifoTaskExecutor,name=<name>}.
+     *
+     * @param name
+     * @throws JMException
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        if (objectName != null) {
+            throw new IllegalStateException("Already registered as " + objectName);
+        }
+        ObjectName on = new ObjectName("org.brutusin.commons.concurrent:type=FifoTaskExecutor,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        this.objectName = on;
+    }
+
+    /**
+     * Unregisters these metrics from the platform MBean server, if
+     * registered.
+     *
+     * @throws JMException
+     */
+    public synchronized void unregisterMBean() throws JMException {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(objectName);
+            } finally {
+                objectName = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "{submitted=" + getSubmitted()
+                + ", errors=" + getErrors()
+                + ", bufferedResults=" + getBufferedResults()
+                + ", submitterBlockedTime=" + getSubmitterBlockedTime()
+                + ", queueWaitTime=" + getQueueWaitTime()
+                + ", parallelTime=" + getParallelTime()
+                + ", bufferDepth=" + getBufferDepth()
+                + ", predecessorWaitTime=" + getPredecessorWaitTime()
+                + ", sequentialTime=" + getSequentialTime() + "}";
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.concurrent;
+
+/**
+ * JMX view of {@link FifoTaskExecutorMetrics}. Times are in nanoseconds.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public interface FifoTaskExecutorMetricsMXBean {
+
+    public long getSubmitted();
+
+    public long getErrors();
+
+    public long getBufferedResults();
+
+    public Histogram.Snapshot getSubmitterBlockedTime();
+
+    public Histogram.Snapshot getQueueWaitTime();
+
+    public Histogram.Snapshot getParallelTime();
+
+    public Histogram.Snapshot getBufferDepth();
+
+    public Histogram.Snapshot getPredecessorWaitTime();
+
+    public Histogram.Snapshot getSequentialTime();
+}
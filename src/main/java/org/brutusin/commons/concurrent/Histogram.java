@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.concurrent;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Lock-free histogram of non-negative values, with power-of-two buckets.
+ * <br><br>
+ * Recording a value only updates striped counters ({@link LongAdder}), so it
+ * can be called from many threads with low contention. Percentiles are
+ * approximated by the upper bound of the bucket they fall in.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public final class Histogram {
+
+    private final LongAdder[] buckets = new LongAdder[65];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    }, 0);
+
+    public Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param value value to record. Negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return a point in time view of the recorded values. Not atomic with
+     * regard to concurrent recordings
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        long mx = max.get();
+        return new Snapshot(total, sum.sum(), mx,
+                percentile(counts, total, mx, 0.5),
+                percentile(counts, total, mx, 0.9),
+                percentile(counts, total, mx, 0.99));
+    }
+
+    private static long percentile(long[] counts, long total, long max, double p) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p);
+        long acc = 0;
+        for (int i = 0; i < counts.length; i++) {
+            acc += counts[i];
+            if (acc >= rank) {
+                long upper = i == 0 ? 0 : (i == 64 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upper, max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Immutable view of a {@link Histogram}.
+     */
+    public static final class Snapshot {
+
+        private final long count;
+        private final long sum;
+        private final long max;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+
+        @ConstructorProperties({"count", "sum", "max", "p50", "p90", "p99"})
+        public Snapshot(long count, long sum, long max, long p50, long p90, long p99) {
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + count + ", mean=" + getMean() + ", p50=" + p50 + ", p90=" + p90 + ", p99=" + p99 + ", max=" + max + "}";
+        }
+    }
+}
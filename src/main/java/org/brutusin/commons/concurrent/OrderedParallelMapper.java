@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * "Parallel map, ordered emit" over possibly unbounded sources.
+ * <br><br>
+ * Source elements are pulled lazily, mapped in parallel by a
+ * {@link FifoTaskExecutor} and emitted in source order. At most
+ * {@code prefetch} elements are being mapped or waiting to be consumed at any
+ * time, so memory stays bounded whatever the source size.
+ * <br><br>
+ * Exceptions thrown by the mapping function are rethrown to the consumer,
+ * wrapped in a {@link CompletionException}, when the corresponding element
+ * is reached.
+ * <br><br>
+ * Each iterator (or stream) has its own worker threads, released when it is
+ * exhausted or closed. Iterators not consumed to the end must be closed.
+ * Worker threads of abandoned iterators terminate after being idle for a
+ * minute.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public final class OrderedParallelMapper {
+
+    private OrderedParallelMapper() {
+    }
+
+    /**
+     * Same as {@code map(source, mapper, 0, 0)}
+     */
+    public static <T, R> CloseableIterator<R> map(Iterator<? extends T> source, Function<? super T, ? extends R> mapper) {
+        return map(source, mapper, 0, 0);
+    }
+
+    /**
+     * Returns a lazy iterator over the mapped elements of {@code source}, in
+     * source order. The worker threads are daemon threads, released once the
+     * returned iterator is exhausted or closed.
+     *
+     * @param <T> source element type
+     * @param <R> mapped element type
+     * @param source source iterator, only accessed by the consuming thread
+     * @param mapper mapping function, invoked in parallel
+     * @param parallelism number of threads. If {@code 0}, it is set to the
+     * number of available processors
+     * @param prefetch maximum number of elements mapped ahead of the consumer.
+     * If {@code 0}, it is set to {@code 4 * parallelism}
+     * @return the mapped iterator
+     * @throws IllegalArgumentException if {@code parallelism < 0} or
+     * {@code prefetch} is lower than {@code parallelism}
+     */
+    public static <T, R> CloseableIterator<R> map(Iterator<? extends T> source, Function<? super T, ? extends R> mapper, int parallelism, int prefetch) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException("parallelism can not be negative");
+        } else if (parallelism == 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        if (prefetch == 0) {
+            prefetch = 4 * parallelism;
+        }
+        FifoTaskExecutor<R> executor = new FifoTaskExecutor<R>(parallelism, prefetch, DAEMON_THREAD_FACTORY);
+        executor.setIdleTimeout(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return new MappedIterator<T, R>(source, mapper, executor, prefetch);
+    }
+
+    /**
+     * Same as {@code stream(source, mapper, 0, 0)}
+     */
+    public static <T, R> Stream<R> stream(Spliterator<? extends T> source, Function<? super T, ? extends R> mapper) {
+        return stream(source, mapper, 0, 0);
+    }
+
+    /**
+     * Returns a lazy sequential ordered stream over the mapped elements of
+     * {@code source}. See {@link #map(Iterator, Function, int, int)}. The
+     * stream must be closed (for example, in a try-with-resources statement)
+     * unless it is consumed to the end, to release the worker threads.
+     *
+     * @param <T> source element type
+     * @param <R> mapped element type
+     * @param source source spliterator
+     * @param mapper mapping function, invoked in parallel
+     * @param parallelism number of threads
+     * @param prefetch maximum number of elements mapped ahead of the consumer
+     * @return the mapped stream
+     */
+    public static <T, R> Stream<R> stream(Spliterator<? extends T> source, Function<? super T, ? extends R> mapper, int parallelism, int prefetch) {
+        final CloseableIterator<R> it = map(Spliterators.iterator(source), mapper, parallelism, prefetch);
+        int characteristics = Spliterator.ORDERED | (source.characteristics() & (Spliterator.SIZED | Spliterator.SUBSIZED));
+        Spliterator<R> spliterator;
+        if ((characteristics & Spliterator.SIZED) != 0) {
+            spliterator = Spliterators.spliterator(it, source.estimateSize(), characteristics);
+        } else {
+            spliterator = Spliterators.spliteratorUnknownSize(it, characteristics);
+        }
+        return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+            public void run() {
+                it.close();
+            }
+        });
+    }
+
+    private static final long IDLE_TIMEOUT_SECONDS = 60;
+
+    private static final ThreadFactory DAEMON_THREAD_FACTORY = new ThreadFactory() {
+        private final ThreadFactory tf = Executors.defaultThreadFactory();
+
+        public Thread newThread(Runnable r) {
+            Thread t = tf.newThread(r);
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private static final class MappedIterator<T, R> implements CloseableIterator<R> {
+
+        private final Iterator<? extends T> source;
+        private final Function<? super T, ? extends R> mapper;
+        private final FifoTaskExecutor<R> executor;
+        private final int prefetch;
+        private final ArrayDeque<CompletableFuture<R>> queue;
+        private boolean closed;
+
+        public MappedIterator(Iterator<? extends T> source, Function<? super T, ? extends R> mapper, FifoTaskExecutor<R> executor, int prefetch) {
+            this.source = source;
+            this.mapper = mapper;
+            this.executor = executor;
+            this.prefetch = prefetch;
+            this.queue = new ArrayDeque<CompletableFuture<R>>(prefetch);
+        }
+
+        private void fill() {
+            while (!closed && queue.size() < prefetch && source.hasNext()) {
+                final T t = source.next();
+                queue.add(executor.submit(new FifoTask<R>() {
+                    public R runParallel() {
+                        return mapper.apply(t);
+                    }
+
+                    public void runSequential(R r) {
+                    }
+
+                    public void onError(Throwable th) {
+                    }
+                }));
+            }
+            if (queue.isEmpty()) {
+                close();
+            }
+        }
+
+        public boolean hasNext() {
+            fill();
+            return !queue.isEmpty();
+        }
+
+        public R next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            CompletableFuture<R> head = queue.poll();
+            fill();
+            return head.join();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            if (!closed) {
+                closed = true;
+                queue.clear();
+                executor.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.concurrent;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes {@link FifoTask} tasks asynchronously keeping the output order per
+ * key, using a shared pool of threads of size {@code maxThreads}.
+ * <br><br>
+ * Keys are hashed into a fixed number of partitions, each one with its own
+ * reorder window of {@code maxInFlight} tasks. {@link FifoTask#runSequential(Object)}
+ * calls of tasks in the same partition follow the submission order, while the
+ * ones of different partitions may run concurrently. So a slow task only
+ * delays the tasks of the keys sharing its partition.
+ * <br><br>
+ * Tasks that do not fit in the window of their partition wait in a queue of
+ * that partition, so {@link #execute(Object, FifoTask)} does not block on a
+ * full partition. It only blocks when the total number of tasks submitted and
+ * not yet sequentially processed, in all the partitions, reaches
+ * {@code maxQueued}. Note that a single slow key can eventually take all of
+ * them.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ * @param <K> key type
+ * @param <E> outcome type
+ * @see FifoTaskExecutor
+ */
+public class PartitionedFifoTaskExecutor<K, E> {
+
+    /**
+     * Default value of {@code maxQueued}, as a multiple of the total size of
+     * the partition windows.
+     */
+    public static final int DEFAULT_QUEUE_FACTOR = 16;
+
+    private final int maxThreads;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final ExecutorService executorService;
+    private final Partition<E>[] partitions;
+    private final Semaphore queued;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile boolean shutdown;
+    private volatile FifoTaskExecutorMetrics metrics;
+
+    /**
+     * Same as {@code PartitionedFifoTaskExecutor(0, 0, 0, null)}
+     */
+    public PartitionedFifoTaskExecutor() {
+        this(0, 0, 0, null);
+    }
+
+    /**
+     * Same as
+     * {@code PartitionedFifoTaskExecutor(maxThreads, partitions, maxInFlight, 0, tf)}
+     */
+    public PartitionedFifoTaskExecutor(int maxThreads, int partitions, int maxInFlight, ThreadFactory tf) {
+        this(maxThreads, partitions, maxInFlight, 0, tf);
+    }
+
+    /**
+     * If {@code maxThreads == 0}, {@code maxThreads} is set to the number of
+     * available processors returned by
+     * {@code Runtime.getRuntime().availableProcessors()}.
+     *
+     * @param maxThreads number of maximum allowed threads.
+     * @param partitions number of partitions. If {@code 0}, it is set to
+     * {@code 4 * maxThreads}
+     * @param maxInFlight number of maximum tasks in progress per partition. If
+     * {@code 0}, it is set to {@code maxThreads}
+     * @param maxQueued number of maximum tasks submitted and not yet
+     * sequentially processed, in all the partitions. If {@code 0}, it is set
+     * to {@code DEFAULT_QUEUE_FACTOR * partitions * maxInFlight}
+     * @param tf the factory to use when the executor creates a new thread. If
+     * {@code null}, {@link Executors#defaultThreadFactory()} is used.
+     * @throws IllegalArgumentException if any numeric argument is negative
+     */
+    public PartitionedFifoTaskExecutor(int maxThreads, int partitions, int maxInFlight, int maxQueued, ThreadFactory tf) {
+        if (maxThreads < 0) {
+            throw new IllegalArgumentException("maxThreads can not be negative");
+        } else if (maxThreads == 0) {
+            maxThreads = Runtime.getRuntime().availableProcessors();
+        }
+        if (partitions < 0) {
+            throw new IllegalArgumentException("partitions can not be negative");
+        } else if (partitions == 0) {
+            partitions = 4 * maxThreads;
+        }
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("maxInFlight can not be negative");
+        } else if (maxInFlight == 0) {
+            maxInFlight = maxThreads;
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("maxQueued can not be negative");
+        } else if (maxQueued == 0) {
+            maxQueued = (int) Math.min(Integer.MAX_VALUE, (long) DEFAULT_QUEUE_FACTOR * partitions * maxInFlight);
+        }
+        if (tf == null) {
+            tf = Executors.defaultThreadFactory();
+        }
+        this.maxThreads = maxThreads;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.queued = new Semaphore(maxQueued);
+        this.executorService = new ThreadPoolExecutor(
+                maxThreads,
+                maxThreads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                tf);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Partition<E>[] array = new Partition[partitions];
+        this.partitions = array;
+        for (int i = 0; i < partitions; i++) {
+            final Partition<E> partition = new Partition<E>(maxInFlight);
+            partition.ring.setReleaseListener(new Runnable() {
+                public void run() {
+                    queued.release();
+                    if (outstanding.decrementAndGet() == 0 && shutdown) {
+                        executorService.shutdown();
+                    }
+                    if (!partition.pending.isEmpty()) {
+                        pump(partition);
+                    }
+                }
+            });
+            this.partitions[i] = partition;
+        }
+    }
+
+    /**
+     * @return Number of maximum allowed threads
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * @return Number of partitions
+     */
+    public int getPartitions() {
+        return partitions.length;
+    }
+
+    /**
+     * @return Number of maximum tasks in progress per partition
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return Number of maximum tasks submitted and not yet sequentially
+     * processed, in all the partitions
+     */
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * @return Number of tasks waiting for a free slot in the window of their
+     * partition
+     */
+    public int getPending() {
+        int ret = 0;
+        for (Partition<E> partition : partitions) {
+            ret += partition.pending.size();
+        }
+        return ret;
+    }
+
+    /**
+     * Enables or disables the recording of metrics, disabled by default. To
+     * be called before submitting tasks.
+     *
+     * @param enabled
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        FifoTaskExecutorMetrics m = enabled ? new FifoTaskExecutorMetrics() : null;
+        for (Partition<E> partition : partitions) {
+            partition.ring.setMetrics(m);
+        }
+        metrics = m;
+    }
+
+    /**
+     * @return the instrumentation of this instance, aggregated for all the
+     * partitions, or {@code null} if metrics are not enabled
+     * @see #setMetricsEnabled(boolean)
+     */
+    public FifoTaskExecutorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Initiates an orderly shutdown. Tasks already submitted, including the
+     * ones waiting in the partition queues, are still executed, but no new
+     * tasks are accepted.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (outstanding.get() == 0) {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * {@link ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)}
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executorService.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Executes the submitted task. Its sequential callback is run after the
+     * ones of the previously submitted tasks with the same key. If the window
+     * of the key partition is full, the task waits in the partition queue.
+     * This method only blocks when {@code maxQueued} tasks are submitted and
+     * not yet sequentially processed.
+     *
+     * @param key ordering key. {@code null} is allowed
+     * @param task
+     * @throws InterruptedException
+     * @throws RejectedExecutionException if this executor has been shut down
+     */
+    public void execute(K key, final FifoTask<E> task) throws InterruptedException {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        FifoTaskExecutorMetrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        queued.acquire();
+        if (m != null) {
+            m.submitterBlockedTime.record(System.nanoTime() - start);
+        }
+        outstanding.incrementAndGet();
+        Partition<E> partition = partitions[partition(key)];
+        partition.pending.add(task);
+        pump(partition);
+    }
+
+    /**
+     * Moves pending tasks of the partition to its ring while there are free
+     * slots. Only one thread pumps a partition at a time; concurrent requests
+     * make it loop again.
+     */
+    private void pump(Partition<E> partition) {
+        if (partition.pumpWip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (;;) {
+            FifoTask<E> task;
+            while ((task = partition.pending.peek()) != null) {
+                long seq = partition.ring.tryClaim(task);
+                if (seq < 0) {
+                    break;
+                }
+                partition.pending.poll();
+                try {
+                    dispatch(partition.ring, seq, task);
+                } catch (RejectedExecutionException ex) {
+                    // notified in order, after the predecessors
+                    partition.ring.complete(seq, null, ex, 0);
+                }
+            }
+            missed = partition.pumpWip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void dispatch(final CompletionRing<E> ring, final long seq, final FifoTask<E> task) {
+        FifoTaskExecutorMetrics m = metrics;
+        final long dispatchNanos;
+        if (m != null) {
+            m.submitted.increment();
+            dispatchNanos = System.nanoTime();
+        } else {
+            dispatchNanos = 0;
+        }
+        this.executorService.execute(new Runnable() {
+            public void run() {
+                ring.run(seq, task, null, dispatchNanos);
+            }
+        });
+    }
+
+    private int partition(K key) {
+        if (key == null) {
+            return 0;
+        }
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % partitions.length;
+    }
+
+    private static final class Partition<E> {
+
+        private final CompletionRing<E> ring;
+        private final ConcurrentLinkedQueue<FifoTask<E>> pending = new ConcurrentLinkedQueue<FifoTask<E>>();
+        private final AtomicInteger pumpWip = new AtomicInteger();
+
+        Partition(int maxInFlight) {
+            this.ring = new CompletionRing<E>(maxInFlight);
+        }
+    }
+}
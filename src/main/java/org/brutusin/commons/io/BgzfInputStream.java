@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import org.brutusin.commons.concurrent.FifoTask;
+import org.brutusin.commons.concurrent.FifoTaskExecutor;
+
+/**
+ * Input stream over the decompressed content of a multi-member gzip file in
+ * BGZF format (members carrying their compressed size in a {@code BC} extra
+ * subfield, as written by {@code bgzip}), that reads and inflates members in
+ * parallel, ahead of the consumer.
+ * <br><br>
+ * Member boundaries are found by reading the member headers only, and each
+ * member is read, inflated and checked (CRC32 and size) by a
+ * {@link FifoTaskExecutor} task. Members are delivered in file order.
+ * <br><br>
+ * From the first member that is not a BGZF one on (files mixing BGZF and
+ * plain gzip members), the rest of the file is inflated sequentially by a
+ * {@link GZIPInputStream}.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+final class BgzfInputStream extends InputStream {
+
+    private static final int HEADER_SIZE = 18;
+    private static final ThreadFactory DAEMON_THREAD_FACTORY = new ThreadFactory() {
+        private final ThreadFactory tf = Executors.defaultThreadFactory();
+
+        public Thread newThread(Runnable r) {
+            Thread t = tf.newThread(r);
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long size;
+    private final FifoTaskExecutor<byte[]> executor;
+    private final int prefetch;
+    private final ArrayDeque<CompletableFuture<byte[]>> queue;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long nextMember;
+    /**
+     * Offset of the first non BGZF member, or {@code -1}.
+     */
+    private long sequentialOffset = -1;
+    private InputStream sequential;
+    private byte[] current;
+    private int position;
+    private boolean closed;
+
+    /**
+     * @param file BGZF file
+     * @param parallelism number of threads. If {@code 0}, it is set to the
+     * number of available processors
+     * @throws IOException
+     */
+    BgzfInputStream(File file, int parallelism) throws IOException {
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = this.raf.getChannel();
+        this.size = this.channel.size();
+        this.prefetch = 4 * parallelism;
+        this.executor = new FifoTaskExecutor<byte[]>(parallelism, this.prefetch, DAEMON_THREAD_FACTORY);
+        this.queue = new ArrayDeque<CompletableFuture<byte[]>>(this.prefetch);
+    }
+
+    /**
+     * @param header first bytes of a file
+     * @param length number of valid bytes
+     * @return whether the first member of the file is a BGZF one
+     */
+    static boolean isBgzf(byte[] header, int length) {
+        if (length < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(header, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        return memberSize(bb) > 0;
+    }
+
+    /**
+     * @return the total size of the member whose header is in the buffer, or
+     * {@code -1} if it is not a BGZF member
+     */
+    private static int memberSize(ByteBuffer bb) {
+        if (bb.get(0) != (byte) 0x1f || bb.get(1) != (byte) 0x8b || bb.get(2) != 8 || (bb.get(3) & 4) == 0) {
+            return -1;
+        }
+        int xlen = bb.getShort(10) & 0xFFFF;
+        int i = 12;
+        while (i + 4 <= 12 + xlen && i + 4 <= bb.limit()) {
+            int slen = bb.getShort(i + 2) & 0xFFFF;
+            if (bb.get(i) == 'B' && bb.get(i + 1) == 'C' && slen == 2 && i + 6 <= bb.limit()) {
+                return (bb.getShort(i + 4) & 0xFFFF) + 1;
+            }
+            i += 4 + slen;
+        }
+        return -1;
+    }
+
+    private void fill() throws IOException {
+        while (this.queue.size() < this.prefetch && this.nextMember < this.size) {
+            ((Buffer) this.header).clear();
+            int n = 0;
+            while (this.header.hasRemaining()) {
+                int r = this.channel.read(this.header, this.nextMember + n);
+                if (r < 0) {
+                    break;
+                }
+                n += r;
+            }
+            ((Buffer) this.header).flip();
+            int memberSize = n == HEADER_SIZE ? memberSize(this.header) : -1;
+            if (memberSize < 0 || this.nextMember + memberSize > this.size) {
+                this.sequentialOffset = this.nextMember;
+                this.nextMember = this.size;
+                return;
+            }
+            final long offset = this.nextMember;
+            final int length = memberSize;
+            final int xlen = this.header.getShort(10) & 0xFFFF;
+            this.nextMember += memberSize;
+            this.queue.add(this.executor.submit(new FifoTask<byte[]>() {
+                public byte[] runParallel() {
+                    try {
+                        return inflate(offset, length, xlen);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+
+                public void runSequential(byte[] e) {
+                }
+
+                public void onError(Throwable th) {
+                }
+            }));
+        }
+    }
+
+    private byte[] inflate(long offset, int length, int xlen) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (bb.hasRemaining()) {
+            if (this.channel.read(bb, offset + bb.position()) < 0) {
+                throw new IOException("Unexpected end of file in BGZF member at offset " + offset);
+            }
+        }
+        int dataStart = 12 + xlen;
+        int dataEnd = length - 8;
+        long crc = bb.getInt(dataEnd) & 0xFFFFFFFFL;
+        int isize = bb.getInt(dataEnd + 4);
+        if (dataEnd < dataStart || isize < 0) {
+            throw new IOException("Corrupt BGZF member at offset " + offset);
+        }
+        byte[] ret = new byte[isize];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(bb.array(), dataStart, dataEnd - dataStart);
+            int n = 0;
+            while (n < isize) {
+                int r = inflater.inflate(ret, n, isize - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != isize) {
+                throw new IOException("Corrupt BGZF member at offset " + offset + ": size mismatch");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt BGZF member at offset " + offset, ex);
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(ret, 0, isize);
+        if (crc32.getValue() != crc) {
+            throw new IOException("Corrupt BGZF member at offset " + offset + ": CRC mismatch");
+        }
+        return ret;
+    }
+
+    /**
+     * @return {@code false} at the end of the BGZF members. Then, the rest of
+     * the content is read from {@link #sequential}, if any
+     */
+    private boolean advance() throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        while (this.current == null || this.position >= this.current.length) {
+            fill();
+            CompletableFuture<byte[]> head = this.queue.poll();
+            if (head == null) {
+                if (this.sequentialOffset >= 0 && this.sequential == null) {
+                    this.channel.position(this.sequentialOffset);
+                    this.sequential = new GZIPInputStream(Channels.newInputStream(this.channel), 64 * 1024);
+                }
+                return false;
+            }
+            try {
+                this.current = head.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+                throw new IOException(cause);
+            }
+            this.position = 0;
+            fill();
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!advance()) {
+            return this.sequential == null ? -1 : this.sequential.read();
+        }
+        return this.current[this.position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!advance()) {
+            return this.sequential == null ? -1 : this.sequential.read(b, off, len);
+        }
+        int n = Math.min(len, this.current.length - this.position);
+        System.arraycopy(this.current, this.position, b, off, n);
+        this.position += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.queue.clear();
+        this.executor.shutdown();
+        if (this.sequential != null) {
+            this.sequential.close();
+        }
+        this.raf.close();
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import org.brutusin.commons.concurrent.FifoTask;
+
+/**
+ * Creates the {@link FifoTask} processing a {@link FileChunk}. Its
+ * {@code runParallel()} typically runs a {@link LineReader} over the chunk
+ * and returns a partial result, that {@code runSequential(E)} merges in chunk
+ * order.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ * @param <E> partial result type
+ */
+public interface ChunkTaskFactory<E> {
+
+    public FifoTask<E> newTask(FileChunk chunk);
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.brutusin.commons.concurrent.FifoTask;
+import org.brutusin.commons.concurrent.FifoTaskExecutor;
+
+/**
+ * Parallel line processing of large files.
+ * <br><br>
+ * Files are split in chunks aligned to line boundaries
+ * ({@link #split(File, String, long, boolean)}) that are processed by
+ * independent {@link LineReader} instances on a pool of threads, either
+ * unordered ({@link #run(List, int, LineReaderFactory)}) or with an ordered
+ * merge of their results ({@link #runOrdered(List, int, ChunkTaskFactory)}).
+ * <br><br>
+ * Only charsets that encode line terminators as single bytes (UTF-8,
+ * US-ASCII, ISO-8859-*...) can be split.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public final class ChunkedFileProcessor {
+
+    private static final int ALIGN_BUFFER_SIZE = 64 * 1024;
+
+    private ChunkedFileProcessor() {
+    }
+
+    /**
+     * Splits the file in chunks of approximately {@code chunkSize} bytes,
+     * each one starting at the beginning of a line.
+     * <br><br>
+     * If {@code countLines} is {@code true}, lines are counted (one extra
+     * parallel scan of the file bytes, without decoding) so that the line
+     * numbers reported by chunk readers are global to the file. Otherwise they
+     * are relative to each chunk.
+     *
+     * @param file
+     * @param charset charset of the file
+     * @param chunkSize target size of the chunks in bytes
+     * @param countLines
+     * @return the chunks, in file order. Empty for an empty file
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws IllegalArgumentException if the charset can not be split at
+     * byte level or {@code chunkSize <= 0}
+     */
+    public static List<FileChunk> split(File file, String charset, long chunkSize, boolean countLines) throws IOException, InterruptedException {
+        if (!LineScanner.isAsciiCompatible(Charset.forName(charset))) {
+            throw new IllegalArgumentException("Charset " + charset + " can not be split at byte level");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        List<Long> boundaries = new ArrayList<Long>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long boundary = 0;
+            ByteBuffer bb = ByteBuffer.allocate(ALIGN_BUFFER_SIZE);
+            while (boundary < size) {
+                boundaries.add(boundary);
+                boundary = align(channel, bb, boundary + chunkSize, size);
+            }
+            boundaries.add(size);
+        } finally {
+            raf.close();
+        }
+        List<FileChunk> chunks = new ArrayList<FileChunk>(boundaries.size());
+        for (int i = 0; i < boundaries.size() - 1; i++) {
+            chunks.add(new FileChunk(file, i, boundaries.get(i), boundaries.get(i + 1), -1));
+        }
+        if (countLines) {
+            chunks = countLines(chunks);
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns the offset of the first line starting at or after
+     * {@code target}.
+     */
+    private static long align(FileChannel channel, ByteBuffer bb, long target, long size) throws IOException {
+        if (target >= size) {
+            return size;
+        }
+        // the byte before the target may be the end of a line
+        long pos = target - 1;
+        while (pos < size) {
+            bb.clear();
+            int read = channel.read(bb, pos);
+            if (read <= 0) {
+                return size;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = bb.get(i);
+                if (b == '\n') {
+                    return pos + i + 1;
+                }
+                if (b == '\r') {
+                    if (i + 1 < read) {
+                        return pos + i + (bb.get(i + 1) == '\n' ? 2 : 1);
+                    }
+                    // lookahead in the next read
+                    pos = pos + i;
+                    ByteBuffer one = ByteBuffer.allocate(1);
+                    if (channel.read(one, pos + 1) == 1 && one.get(0) == '\n') {
+                        return pos + 2;
+                    }
+                    return pos + 1;
+                }
+            }
+            pos += read;
+        }
+        return size;
+    }
+
+    private static List<FileChunk> countLines(final List<FileChunk> chunks) throws IOException, InterruptedException {
+        ExecutorService es = Executors.newFixedThreadPool(Math.min(Math.max(chunks.size(), 1), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>(chunks.size());
+            for (final FileChunk chunk : chunks) {
+                futures.add(es.submit(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        RandomAccessFile raf = new RandomAccessFile(chunk.getFile(), "r");
+                        try {
+                            MappedLineScanner scanner = new MappedLineScanner(raf.getChannel(), chunk.getStart(), chunk.getEnd(), MappedLineScanner.DEFAULT_WINDOW_SIZE);
+                            long count = 0;
+                            while (scanner.next()) {
+                                count++;
+                            }
+                            return count;
+                        } finally {
+                            raf.close();
+                        }
+                    }
+                }));
+            }
+            List<FileChunk> ret = new ArrayList<FileChunk>(chunks.size());
+            long lineOffset = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                FileChunk chunk = chunks.get(i);
+                ret.add(new FileChunk(chunk.getFile(), chunk.getIndex(), chunk.getStart(), chunk.getEnd(), lineOffset));
+                lineOffset += get(futures.get(i));
+            }
+            return ret;
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    /**
+     * Processes the chunks in parallel, in no particular order, with the
+     * {@link LineReader} instances created by the factory.
+     *
+     * @param chunks
+     * @param parallelism number of threads. If {@code 0}, it is set to the
+     * number of available processors
+     * @param factory
+     * @throws IOException the first exception thrown by a reader, once all the
+     * other chunks have been processed. Unchecked exceptions are rethrown the
+     * same way
+     * @throws InterruptedException
+     */
+    public static void run(List<FileChunk> chunks, int parallelism, final LineReaderFactory factory) throws IOException, InterruptedException {
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        ExecutorService es = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(chunks.size());
+            for (final FileChunk chunk : chunks) {
+                futures.add(es.submit(new Callable<Void>() {
+                    public Void call() throws IOException, InterruptedException {
+                        factory.newLineReader(chunk).run();
+                        return null;
+                    }
+                }));
+            }
+            Throwable first = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    if (first == null) {
+                        first = ex.getCause();
+                    }
+                }
+            }
+            if (first != null) {
+                rethrow(first);
+            }
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    /**
+     * Processes the chunks in parallel by means of a {@link FifoTaskExecutor}:
+     * {@code runParallel()} of the chunk tasks are run concurrently, and
+     * {@code runSequential(E)} in chunk order.
+     *
+     * @param <E> partial result type
+     * @param chunks
+     * @param parallelism number of threads. If {@code 0}, it is set to the
+     * number of available processors
+     * @param factory
+     * @throws InterruptedException
+     */
+    public static <E> void runOrdered(List<FileChunk> chunks, int parallelism, ChunkTaskFactory<E> factory) throws InterruptedException {
+        FifoTaskExecutor<E> executor = new FifoTaskExecutor<E>(parallelism);
+        try {
+            for (FileChunk chunk : chunks) {
+                FifoTask<E> task = factory.newTask(chunk);
+                executor.execute(task);
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            rethrow(ex.getCause());
+            return null;
+        }
+    }
+
+    private static void rethrow(Throwable cause) throws IOException, InterruptedException {
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Detection and decompression of gzip and zip inputs for {@link LineReader}.
+ * <br><br>
+ * Decompression is performed by a {@link ReadAheadInputStream} pipeline
+ * thread, except for BGZF files, whose members are inflated in parallel by a
+ * {@link BgzfInputStream}. The content of a zip input is the concatenation of
+ * the content of its entries.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+final class Decompression {
+
+    enum Format {
+        GZIP, BGZF, ZIP
+    }
+
+    private static final int PROBE_SIZE = 64;
+    private static final int INFLATER_BUFFER_SIZE = 64 * 1024;
+
+    private Decompression() {
+    }
+
+    /**
+     * @param file
+     * @return the compression format of the file, or {@code null} if it is not
+     * compressed
+     * @throws IOException
+     */
+    static Format detect(File file) throws IOException {
+        byte[] probe = new byte[PROBE_SIZE];
+        int n = 0;
+        InputStream is = new FileInputStream(file);
+        try {
+            int r;
+            while (n < probe.length && (r = is.read(probe, n, probe.length - n)) >= 0) {
+                n += r;
+            }
+        } finally {
+            is.close();
+        }
+        Format format = detect(probe, n);
+        if (format == Format.GZIP && BgzfInputStream.isBgzf(probe, n)) {
+            return Format.BGZF;
+        }
+        return format;
+    }
+
+    private static Format detect(byte[] probe, int n) {
+        if (n >= 2 && probe[0] == (byte) 0x1f && probe[1] == (byte) 0x8b) {
+            return Format.GZIP;
+        }
+        if (n >= 4 && probe[0] == 'P' && probe[1] == 'K' && probe[2] == 3 && probe[3] == 4) {
+            return Format.ZIP;
+        }
+        return null;
+    }
+
+    /**
+     * @param file compressed file
+     * @param format its format
+     * @param parallelism number of inflating threads for BGZF files. If
+     * {@code 0}, it is set to the number of available processors
+     * @return a stream over the decompressed content of the file
+     * @throws IOException
+     */
+    static InputStream open(File file, Format format, int parallelism) throws IOException {
+        if (format == Format.BGZF) {
+            return new BgzfInputStream(file, parallelism);
+        }
+        return decompress(new BufferedInputStream(new FileInputStream(file), INFLATER_BUFFER_SIZE), format);
+    }
+
+    /**
+     * Detects whether the stream is compressed by peeking at its first bytes.
+     * Only the bytes needed to tell the format are waited for.
+     *
+     * @param is
+     * @return a stream over the decompressed content of the input if it is
+     * compressed, or over the same content otherwise. Closing it does not
+     * close the input
+     * @throws IOException
+     */
+    static InputStream wrap(InputStream is) throws IOException {
+        // closing the returned stream stops the pipeline, but not the input
+        PushbackInputStream pis = new PushbackInputStream(new FilterInputStream(is) {
+            @Override
+            public void close() {
+            }
+        }, 4);
+        byte[] probe = new byte[4];
+        int n = readProbe(pis, probe, 0, 2);
+        if (n == 2 && probe[0] == 'P' && probe[1] == 'K') {
+            n = readProbe(pis, probe, n, 4);
+        }
+        Format format = detect(probe, n);
+        pis.unread(probe, 0, n);
+        if (format == null) {
+            return pis;
+        }
+        return decompress(pis, format);
+    }
+
+    private static int readProbe(InputStream is, byte[] probe, int from, int to) throws IOException {
+        int n = from;
+        int r;
+        while (n < to && (r = is.read(probe, n, to - n)) >= 0) {
+            n += r;
+        }
+        return n;
+    }
+
+    private static InputStream decompress(InputStream is, Format format) throws IOException {
+        InputStream decompressed;
+        if (format == Format.ZIP) {
+            decompressed = new ZipContentInputStream(new ZipInputStream(is));
+        } else {
+            // also reads concatenated members
+            decompressed = new GZIPInputStream(is, INFLATER_BUFFER_SIZE);
+        }
+        return new ReadAheadInputStream(decompressed, ReadAheadInputStream.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Content of all the file entries of a zip stream, one after the other.
+     */
+    private static final class ZipContentInputStream extends FilterInputStream {
+
+        private boolean started;
+        private boolean finished;
+
+        ZipContentInputStream(ZipInputStream zis) {
+            super(zis);
+        }
+
+        private boolean nextEntry() throws IOException {
+            ZipEntry entry;
+            do {
+                entry = ((ZipInputStream) this.in).getNextEntry();
+            } while (entry != null && entry.isDirectory());
+            this.finished = entry == null;
+            return !this.finished;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!this.started) {
+                this.started = true;
+                nextEntry();
+            }
+            while (!this.finished) {
+                int n = this.in.read(b, off, len);
+                if (n >= 0) {
+                    return n;
+                }
+                nextEntry();
+            }
+            return -1;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] b = new byte[(int) Math.min(n, 8192)];
+            int r = read(b, 0, b.length);
+            return r < 0 ? 0 : r;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+
+/**
+ * {@link LineReader} that splits each line in fields separated by a delimiter,
+ * with optional quoting (CSV style: a field starting with the quote character
+ * extends to the next unpaired quote, and a doubled quote inside it stands for
+ * one quote). Multi-line quoted fields are not supported.
+ * <br><br>
+ * Fields are not materialized: the bytes of the line are copied into a reused
+ * buffer (and unquoted in place), and {@link Fields} gives access to them by index,
+ * including typed parsing of numbers straight from the bytes, so processing a
+ * line allocates nothing unless a {@code String} is requested.
+ * <br><br>
+ * Only charsets that encode line terminators as single bytes are supported,
+ * and both the delimiter and the quote must be ASCII characters.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public abstract class DelimitedLineReader extends LineReader {
+
+    /**
+     * Quote character value disabling quoting.
+     */
+    public static final char NO_QUOTE = 0;
+
+    private final Fields fields;
+
+    /**
+     * @param is input stream to process
+     * @param charset charset of the input stream
+     * @param delimiter field delimiter
+     * @param quote quote character, or {@link #NO_QUOTE}
+     * @throws UnsupportedCharsetException
+     */
+    public DelimitedLineReader(InputStream is, String charset, char delimiter, char quote) throws UnsupportedCharsetException {
+        super(is, charset);
+        this.fields = new Fields(Charset.forName(charset), delimiter, quote);
+    }
+
+    /**
+     * @param file file to process
+     * @param charset charset of the file
+     * @param delimiter field delimiter
+     * @param quote quote character, or {@link #NO_QUOTE}
+     * @throws UnsupportedCharsetException
+     */
+    public DelimitedLineReader(File file, String charset, char delimiter, char quote) throws UnsupportedCharsetException {
+        super(file, charset);
+        this.fields = new Fields(Charset.forName(charset), delimiter, quote);
+    }
+
+    /**
+     * @param chunk file chunk to process
+     * @param charset charset of the file
+     * @param delimiter field delimiter
+     * @param quote quote character, or {@link #NO_QUOTE}
+     * @throws UnsupportedCharsetException
+     */
+    public DelimitedLineReader(FileChunk chunk, String charset, char delimiter, char quote) throws UnsupportedCharsetException {
+        super(chunk, charset);
+        this.fields = new Fields(Charset.forName(charset), delimiter, quote);
+    }
+
+    @Override
+    protected final void processLine(LineView line) throws Exception {
+        ByteBuffer bb = line.bytes();
+        this.fields.split(bb, bb.remaining());
+        processFields(this.fields);
+    }
+
+    /**
+     * Only called for lines passed directly as strings, the reader delivers
+     * them as views, also in batch mode.
+     */
+    @Override
+    protected final void processLine(String line) throws Exception {
+        byte[] bytes = line.getBytes(this.fields.charset);
+        this.fields.split(ByteBuffer.wrap(bytes), bytes.length);
+        processFields(this.fields);
+    }
+
+    /**
+     * The actual processing to perform.
+     *
+     * @param fields fields of the current line. The instance is reused for
+     * subsequent lines, so it must not be retained
+     * @throws Exception
+     */
+    protected abstract void processFields(Fields fields) throws Exception;
+
+    /**
+     * Fields of a line.
+     */
+    public static final class Fields {
+
+        /**
+         * {@code 10^i} exactly representable as doubles.
+         */
+        private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        private final Charset charset;
+        private final byte delimiter;
+        private final byte quote;
+        private final boolean quoting;
+        private final long delimiterPattern;
+        private final long quotePattern;
+        private byte[] data = new byte[256];
+        private ByteBuffer words = ByteBuffer.wrap(this.data).order(ByteOrder.LITTLE_ENDIAN);
+        /**
+         * Field {@code i} is {@code data[bounds[2 * i], bounds[2 * i + 1])}.
+         */
+        private int[] bounds = new int[32];
+        private int size;
+
+        Fields(Charset charset, char delimiter, char quote) {
+            if (!LineScanner.isAsciiCompatible(charset)) {
+                throw new IllegalArgumentException("Charset " + charset + " is not supported: ASCII bytes may be part of other characters");
+            }
+            if (delimiter == 0 || delimiter > 127 || quote > 127 || delimiter == quote) {
+                throw new IllegalArgumentException("Delimiter and quote must be different ASCII characters");
+            }
+            this.charset = charset;
+            this.delimiter = (byte) delimiter;
+            this.quote = (byte) quote;
+            this.quoting = quote != NO_QUOTE;
+            this.delimiterPattern = 0x0101010101010101L * delimiter;
+            this.quotePattern = 0x0101010101010101L * quote;
+        }
+
+        void split(ByteBuffer bb, int length) {
+            if (this.data.length < length) {
+                this.data = new byte[Math.max(length, 2 * this.data.length)];
+                this.words = ByteBuffer.wrap(this.data).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            bb.get(this.data, 0, length);
+            if (!splitUnquoted(length)) {
+                splitQuoted(length);
+            }
+        }
+
+        /**
+         * Splits the line testing eight bytes at a time for delimiters.
+         *
+         * @return {@code false} if the line contains quotes
+         */
+        private boolean splitUnquoted(int length) {
+            this.size = 0;
+            int start = 0;
+            int i = 0;
+            for (; i + 8 <= length; i += 8) {
+                long w = this.words.getLong(i);
+                if (this.quoting && zeroBytes(w ^ this.quotePattern) != 0) {
+                    return false;
+                }
+                long d = zeroBytes(w ^ this.delimiterPattern);
+                while (d != 0) {
+                    int pos = i + (Long.numberOfTrailingZeros(d) >>> 3);
+                    addField(start, pos);
+                    start = pos + 1;
+                    d &= d - 1;
+                }
+            }
+            for (; i < length; i++) {
+                byte c = this.data[i];
+                if (c == this.delimiter) {
+                    addField(start, i);
+                    start = i + 1;
+                } else if (this.quoting && c == this.quote) {
+                    return false;
+                }
+            }
+            addField(start, length);
+            return true;
+        }
+
+        /**
+         * @return a word with the high bit set in the bytes of {@code x} that
+         * are zero, and only in those
+         */
+        private static long zeroBytes(long x) {
+            long y = (x & 0x7F7F7F7F7F7F7F7FL) + 0x7F7F7F7F7F7F7F7FL;
+            return ~(y | x | 0x7F7F7F7F7F7F7F7FL);
+        }
+
+        private void splitQuoted(int length) {
+            byte[] b = this.data;
+            byte delim = this.delimiter;
+            this.size = 0;
+            int i = 0;
+            while (true) {
+                int start = i;
+                int end;
+                if (this.quoting && i < length && b[i] == this.quote) {
+                    // unquoted in place, the content only shrinks
+                    start = ++i;
+                    end = start;
+                    while (i < length) {
+                        byte c = b[i++];
+                        if (c == this.quote) {
+                            if (i < length && b[i] == this.quote) {
+                                i++;
+                            } else {
+                                break;
+                            }
+                        }
+                        b[end++] = c;
+                    }
+                    // content after the closing quote, up to the delimiter
+                    while (i < length && b[i] != delim) {
+                        b[end++] = b[i++];
+                    }
+                } else {
+                    while (i < length && b[i] != delim) {
+                        i++;
+                    }
+                    end = i;
+                }
+                addField(start, end);
+                if (i >= length) {
+                    return;
+                }
+                i++; // delimiter
+            }
+        }
+
+        private void addField(int start, int end) {
+            if (2 * this.size + 2 > this.bounds.length) {
+                this.bounds = Arrays.copyOf(this.bounds, 2 * this.bounds.length);
+            }
+            this.bounds[2 * this.size] = start;
+            this.bounds[2 * this.size + 1] = end;
+            this.size++;
+        }
+
+        /**
+         * @return the number of fields of the line
+         */
+        public int size() {
+            return this.size;
+        }
+
+        private int start(int i) {
+            if (i < 0 || i >= this.size) {
+                throw new IndexOutOfBoundsException("Field " + i + " out of [0, " + this.size + ")");
+            }
+            return this.bounds[2 * i];
+        }
+
+        private int end(int i) {
+            return this.bounds[2 * i + 1];
+        }
+
+        /**
+         * @param i 0-based field index
+         * @return the length in bytes of the field
+         */
+        public int length(int i) {
+            return end(i) - start(i);
+        }
+
+        /**
+         * @param i 0-based field index
+         * @return whether the field is empty
+         */
+        public boolean isEmpty(int i) {
+            return length(i) == 0;
+        }
+
+        /**
+         * @param i 0-based field index
+         * @return a new {@code String} with the field content
+         */
+        public String getString(int i) {
+            int start = start(i);
+            return new String(this.data, start, end(i) - start, this.charset);
+        }
+
+        /**
+         * Compares the field with an ASCII string without decoding it.
+         *
+         * @param i 0-based field index
+         * @param ascii
+         * @return whether the field content equals the specified string
+         */
+        public boolean equalsAscii(int i, CharSequence ascii) {
+            int start = start(i);
+            int length = end(i) - start;
+            if (length != ascii.length()) {
+                return false;
+            }
+            for (int j = 0; j < length; j++) {
+                if (this.data[start + j] != ascii.charAt(j)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @param i 0-based field index
+         * @return the field parsed as a decimal {@code int}
+         * @throws NumberFormatException
+         */
+        public int getInt(int i) {
+            long l = getLong(i);
+            if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) {
+                throw new NumberFormatException("Value out of int range in field " + i + ": \"" + getString(i) + "\"");
+            }
+            return (int) l;
+        }
+
+        /**
+         * @param i 0-based field index
+         * @return the field parsed as a decimal {@code long}
+         * @throws NumberFormatException
+         */
+        public long getLong(int i) {
+            int p = start(i);
+            int end = end(i);
+            boolean negative = false;
+            if (p < end && (this.data[p] == '-' || this.data[p] == '+')) {
+                negative = this.data[p] == '-';
+                p++;
+            }
+            if (p == end) {
+                throw numberFormatException(i);
+            }
+            if (end - p <= 18) {
+                // no overflow possible
+                long result = 0;
+                for (; p < end; p++) {
+                    int digit = this.data[p] - '0';
+                    if (digit < 0 || digit > 9) {
+                        throw numberFormatException(i);
+                    }
+                    result = result * 10 + digit;
+                }
+                return negative ? -result : result;
+            }
+            // accumulated negatively to reach Long.MIN_VALUE
+            long result = 0;
+            long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+            long multmin = limit / 10;
+            for (; p < end; p++) {
+                int digit = this.data[p] - '0';
+                if (digit < 0 || digit > 9 || result < multmin) {
+                    throw numberFormatException(i);
+                }
+                result *= 10;
+                if (result < limit + digit) {
+                    throw numberFormatException(i);
+                }
+                result -= digit;
+            }
+            return negative ? result : -result;
+        }
+
+        /**
+         * Parses the field as a {@code double}. Plain decimal values with up to
+         * 15 significant digits and small exponents are parsed straight from
+         * the bytes, the rest by {@link Double#parseDouble(String)}.
+         *
+         * @param i 0-based field index
+         * @return the field parsed as a {@code double}
+         * @throws NumberFormatException
+         */
+        public double getDouble(int i) {
+            int p = start(i);
+            int end = end(i);
+            boolean negative = false;
+            if (p < end && (this.data[p] == '-' || this.data[p] == '+')) {
+                negative = this.data[p] == '-';
+                p++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int scale = 0;
+            boolean anyDigit = false;
+            boolean dot = false;
+            for (; p < end; p++) {
+                byte b = this.data[p];
+                if (b >= '0' && b <= '9') {
+                    anyDigit = true;
+                    if (mantissa == 0 && b == '0') {
+                        if (dot) {
+                            scale--;
+                        }
+                        continue;
+                    }
+                    if (++digits > 15) {
+                        return Double.parseDouble(getString(i));
+                    }
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (dot) {
+                        scale--;
+                    }
+                } else if (b == '.' && !dot) {
+                    dot = true;
+                } else {
+                    break;
+                }
+            }
+            if (p < end) {
+                byte b = this.data[p];
+                if (!anyDigit || b != 'e' && b != 'E') {
+                    // special values, hexadecimal, suffixes, errors...
+                    return Double.parseDouble(getString(i).trim());
+                }
+                p++;
+                boolean negativeExponent = false;
+                if (p < end && (this.data[p] == '-' || this.data[p] == '+')) {
+                    negativeExponent = this.data[p] == '-';
+                    p++;
+                }
+                if (p == end || end - p > 3) {
+                    return Double.parseDouble(getString(i));
+                }
+                int exponent = 0;
+                for (; p < end; p++) {
+                    int digit = this.data[p] - '0';
+                    if (digit < 0 || digit > 9) {
+                        return Double.parseDouble(getString(i));
+                    }
+                    exponent = exponent * 10 + digit;
+                }
+                scale += negativeExponent ? -exponent : exponent;
+            } else if (!anyDigit) {
+                throw numberFormatException(i);
+            }
+            double value;
+            if (mantissa == 0) {
+                value = 0;
+            } else if (scale >= 0 && scale < POWERS_OF_TEN.length) {
+                // exact operands, so a single (correct) rounding
+                value = mantissa * POWERS_OF_TEN[scale];
+            } else if (scale < 0 && -scale < POWERS_OF_TEN.length) {
+                value = mantissa / POWERS_OF_TEN[-scale];
+            } else {
+                return Double.parseDouble(getString(i));
+            }
+            return negative ? -value : value;
+        }
+
+        private NumberFormatException numberFormatException(int i) {
+            return new NumberFormatException("For input string in field " + i + ": \"" + getString(i) + "\"");
+        }
+
+        /**
+         * @return the fields joined by the delimiter, for debugging
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < this.size; i++) {
+                if (i > 0) {
+                    sb.append((char) this.delimiter);
+                }
+                sb.append(getString(i));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.File;
+
+/**
+ * Byte range of a text file starting at the beginning of a line and ending
+ * right after a line terminator (or at the end of the file). See
+ * {@link ChunkedFileProcessor#split(File, String, long, boolean)}.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public final class FileChunk {
+
+    private final File file;
+    private final int index;
+    private final long start;
+    private final long end;
+    private final long lineOffset;
+    private final boolean wholeFile;
+
+    /**
+     * @param file
+     * @param index position of the chunk in the file, 0-based
+     * @param start offset of the first byte
+     * @param end offset after the last byte
+     * @param lineOffset number of lines in the file before this chunk, or
+     * {@code -1} if unknown
+     */
+    public FileChunk(File file, int index, long start, long end, long lineOffset) {
+        this(file, index, start, end, lineOffset, false);
+    }
+
+    /**
+     * @param file
+     * @param index position of the chunk in the file, 0-based
+     * @param start offset of the first byte
+     * @param end offset after the last byte
+     * @param lineOffset number of lines in the file before this chunk, or
+     * {@code -1} if unknown
+     * @param wholeFile see {@link #isWholeFile()}
+     */
+    public FileChunk(File file, int index, long start, long end, long lineOffset, boolean wholeFile) {
+        this.file = file;
+        this.index = index;
+        this.start = start;
+        this.end = end;
+        this.lineOffset = lineOffset;
+        this.wholeFile = wholeFile;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start;
+    }
+
+    /**
+     * @return number of lines in the file before this chunk, or {@code -1} if
+     * unknown
+     */
+    public long getLineOffset() {
+        return lineOffset;
+    }
+
+    /**
+     * @return {@code true} if the chunk spans a file that can not be read at
+     * byte level (compressed, or in a charset that does not encode line
+     * terminators as single bytes), so it must be processed with
+     * {@link LineReader#LineReader(File, String)} instead of
+     * {@link LineReader#LineReader(FileChunk, String)}
+     */
+    public boolean isWholeFile() {
+        return wholeFile;
+    }
+
+    @Override
+    public String toString() {
+        return file + "[" + index + "]{" + start + "," + end + "}";
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link LineScanner} that follows a growing file, like {@code tail -F}.
+ * <br><br>
+ * The file is read with positional {@link FileChannel} reads into a heap
+ * buffer (compacted, and grown if a line does not fit, as lines are consumed)
+ * instead of being memory-mapped, since accessing a mapping of a file that is
+ * truncated meanwhile (as done by {@code logrotate copytruncate}) crashes the
+ * JVM or raises an {@link InternalError}.
+ * <br><br>
+ * Only terminated lines are returned: an incomplete last line (or one ending
+ * in a {@code '\r'} that could be followed by a {@code '\n'}) is rescanned once
+ * more bytes are appended. At the end of the available data, {@link #next()}
+ * waits for changes in the directory of the file, by means of a
+ * {@link WatchService} if available, polling the file size with an exponential
+ * backoff (bounded by {@code maxDelay}) in any case.
+ * <br><br>
+ * The file is considered truncated if its size becomes smaller than the read
+ * offset, or if, when it grows, the last bytes read are not there anymore
+ * (truncated and written again past the read offset between two checks). If
+ * the file at the path is a different one ({@link BasicFileAttributes#fileKey()})
+ * it is considered rotated: the remaining bytes of the old file are scanned
+ * and the new file is opened. In both cases scanning restarts from the
+ * beginning of the file and {@link #takeReset()} returns {@code true} once.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+final class FollowLineScanner extends LineScanner {
+
+    private static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    /**
+     * Number of bytes read last, rechecked when the file grows.
+     */
+    private static final int TAIL_SIZE = 16;
+
+    private final File file;
+    private final Path path;
+    private final long maxDelayNanos;
+    private long delayNanos = MIN_DELAY_NANOS;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private Object fileKey;
+    private WatchService watcher;
+    private byte[] array;
+    /**
+     * File offset of the first byte of the buffer.
+     */
+    private long bufferOffset;
+    /**
+     * Start of the unconsumed bytes.
+     */
+    private int position;
+    /**
+     * End of the valid bytes.
+     */
+    private int limit;
+    private final byte[] tail = new byte[TAIL_SIZE];
+    private int tailLength;
+    /**
+     * End and next line start of the line found by {@link #peek()}.
+     */
+    private int peekEnd;
+    private int peekNext;
+    private boolean pending;
+    private boolean draining;
+    private boolean reset;
+    private volatile boolean stopped;
+
+    /**
+     * @param file file to follow
+     * @param start offset of the first line
+     * @param bufferSize initial size of the buffer
+     * @param maxDelayNanos maximum time between checks of the file
+     * @throws IOException
+     */
+    FollowLineScanner(File file, long start, int bufferSize, long maxDelayNanos) throws IOException {
+        this.file = file;
+        this.path = file.toPath().toAbsolutePath();
+        this.maxDelayNanos = Math.max(maxDelayNanos, MIN_DELAY_NANOS);
+        this.array = new byte[Math.max(bufferSize, 16)];
+        this.buffer = ByteBuffer.wrap(this.array).order(ByteOrder.LITTLE_ENDIAN);
+        this.bufferOffset = start;
+        this.endOffset = start;
+        open();
+        try {
+            this.watcher = this.path.getFileSystem().newWatchService();
+            Path dir = this.path.getParent();
+            dir.register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ex) {
+            closeWatcher();
+            this.watcher = null;
+        } catch (UnsupportedOperationException ex) {
+            closeWatcher();
+            this.watcher = null;
+        }
+    }
+
+    private void open() throws IOException {
+        this.raf = new RandomAccessFile(this.file, "r");
+        this.channel = this.raf.getChannel();
+        this.fileKey = readFileKey();
+    }
+
+    private Object readFileKey() throws IOException {
+        try {
+            return Files.readAttributes(this.path, BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    boolean next() throws IOException {
+        if (this.pending) {
+            this.pending = false;
+            accept();
+            return true;
+        }
+        while (!this.stopped) {
+            if (peek()) {
+                accept();
+                return true;
+            }
+            long size = this.channel.size();
+            long readTo = this.bufferOffset + this.limit;
+            if (size > readTo) {
+                if (!this.draining && overwritten()) {
+                    restart();
+                } else {
+                    fill();
+                }
+                continue;
+            }
+            if (this.draining) {
+                if (!reopen()) {
+                    return false;
+                }
+                continue;
+            }
+            if (size < readTo) {
+                restart();
+                continue;
+            }
+            Object key = readFileKey();
+            if (key != null && !key.equals(this.fileKey)) {
+                // rotated: the old file is not going to grow anymore
+                this.draining = true;
+                continue;
+            }
+            if (!await()) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether a complete line is available without waiting
+     */
+    @Override
+    boolean ready() throws IOException {
+        if (!this.pending) {
+            this.pending = peek();
+        }
+        return this.pending;
+    }
+
+    /**
+     * Looks for the next complete line in the buffer, without reading.
+     */
+    private boolean peek() {
+        int eol = indexOfEol(this.buffer, this.position, this.limit);
+        if (eol < 0) {
+            if (this.draining && this.position < this.limit) {
+                this.peekEnd = this.limit;
+                this.peekNext = this.limit;
+                return true;
+            }
+            return false;
+        }
+        this.peekEnd = eol;
+        if (this.array[eol] == '\n') {
+            this.peekNext = eol + 1;
+        } else if (eol + 1 < this.limit) {
+            this.peekNext = this.array[eol + 1] == '\n' ? eol + 2 : eol + 1;
+        } else if (this.draining) {
+            this.peekNext = eol + 1;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void accept() {
+        this.lineStart = this.position;
+        this.lineEnd = this.peekEnd;
+        this.startOffset = this.bufferOffset + this.position;
+        this.endOffset = this.bufferOffset + this.peekNext;
+        this.position = this.peekNext;
+        this.delayNanos = MIN_DELAY_NANOS;
+    }
+
+    /**
+     * Reads more bytes, discarding the consumed ones.
+     */
+    private void fill() throws IOException {
+        if (this.position > 0) {
+            System.arraycopy(this.array, this.position, this.array, 0, this.limit - this.position);
+            this.bufferOffset += this.position;
+            this.limit -= this.position;
+            this.position = 0;
+        }
+        if (this.limit == this.array.length) {
+            this.array = Arrays.copyOf(this.array, this.array.length * 2);
+            this.buffer = ByteBuffer.wrap(this.array).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        int n = this.channel.read(ByteBuffer.wrap(this.array, this.limit, this.array.length - this.limit), this.bufferOffset + this.limit);
+        if (n > 0) {
+            this.limit += n;
+            this.tailLength = Math.min(TAIL_SIZE, this.limit);
+            System.arraycopy(this.array, this.limit - this.tailLength, this.tail, 0, this.tailLength);
+        }
+    }
+
+    /**
+     * @return whether the last bytes read have changed, that is, the file has
+     * been truncated and written again beyond the read offset
+     */
+    private boolean overwritten() throws IOException {
+        if (this.tailLength == 0) {
+            return false;
+        }
+        ByteBuffer bb = ByteBuffer.allocate(this.tailLength);
+        long from = this.bufferOffset + this.limit - this.tailLength;
+        while (bb.hasRemaining()) {
+            if (this.channel.read(bb, from + bb.position()) < 0) {
+                return true;
+            }
+        }
+        for (int i = 0; i < this.tailLength; i++) {
+            if (bb.get(i) != this.tail[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens the new file at the path, waiting for it to be created.
+     *
+     * @return {@code false} if stopped or interrupted before
+     */
+    private boolean reopen() throws IOException {
+        this.draining = false;
+        this.raf.close();
+        try {
+            open();
+        } catch (IOException ex) {
+            // not created yet
+            this.raf = null;
+            while (this.raf == null) {
+                if (!await()) {
+                    return false;
+                }
+                try {
+                    open();
+                } catch (IOException ex2) {
+                    this.raf = null;
+                }
+            }
+        }
+        restart();
+        return true;
+    }
+
+    private void restart() {
+        this.bufferOffset = 0;
+        this.position = 0;
+        this.limit = 0;
+        this.tailLength = 0;
+        this.endOffset = 0;
+        this.reset = true;
+    }
+
+    /**
+     * Waits for changes in the file.
+     *
+     * @return {@code false} if stopped or interrupted
+     */
+    private boolean await() {
+        try {
+            if (this.watcher != null) {
+                WatchKey key = this.watcher.poll(this.delayNanos, TimeUnit.NANOSECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            } else {
+                TimeUnit.NANOSECONDS.sleep(this.delayNanos);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ClosedWatchServiceException ex) {
+            return false;
+        }
+        this.delayNanos = Math.min(this.delayNanos * 2, this.maxDelayNanos);
+        return !this.stopped;
+    }
+
+    /**
+     * @return {@code true} if the scanning restarted from the beginning of the
+     * file (truncation or rotation) since the last call
+     */
+    boolean takeReset() {
+        boolean ret = this.reset;
+        this.reset = false;
+        return ret;
+    }
+
+    @Override
+    boolean isLast() {
+        return false;
+    }
+
+    /**
+     * Makes {@link #next()} return {@code false} as soon as possible. Can be
+     * called from any thread.
+     */
+    void stop() {
+        this.stopped = true;
+        closeWatcher();
+    }
+
+    private void closeWatcher() {
+        WatchService ws = this.watcher;
+        if (ws != null) {
+            try {
+                ws.close();
+            } catch (IOException ex) {
+                // nothing to do
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.stopped = true;
+        closeWatcher();
+        this.buffer = null;
+        this.array = null;
+        if (this.raf != null) {
+            this.raf.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Random access by line number to a text file with a {@link LineIndex}.
+ * <br><br>
+ * Lines are located by seeking to the closest indexed offset and scanning the
+ * memory-mapped bytes from there. To stream the file from a given line use
+ * {@link #getOffset(long)} and
+ * {@link LineReader#LineReader(File, String, long, long)}:
+ * <pre>
+ * new LineReader(file, charset, ilf.getOffset(n), n - 1) {...}.run();
+ * </pre> Instances are thread-safe.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public final class IndexedLineFile implements Closeable {
+
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    private final LineIndex index;
+    private final Charset charset;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    /**
+     * @param file file to read
+     * @param indexFile index of the file, see {@link LineIndex#write(File)}
+     * @param charset charset of the file. Must encode line terminators as
+     * single bytes
+     * @throws IOException if the index is not valid or the file has changed
+     * since it was indexed
+     */
+    public IndexedLineFile(File file, File indexFile, String charset) throws IOException {
+        this(file, LineIndex.read(indexFile), charset);
+    }
+
+    /**
+     * @param file file to read
+     * @param index index of the file
+     * @param charset charset of the file. Must encode line terminators as
+     * single bytes
+     * @throws IOException if the file has changed since it was indexed
+     */
+    public IndexedLineFile(File file, LineIndex index, String charset) throws IOException {
+        this.charset = Charset.forName(charset);
+        if (!LineScanner.isAsciiCompatible(this.charset)) {
+            throw new IllegalArgumentException("Charset " + charset + " can not be indexed at byte level");
+        }
+        if (!index.isValidFor(file)) {
+            throw new IOException("Stale index: " + file + " has changed since it was indexed");
+        }
+        this.index = index;
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = this.raf.getChannel();
+    }
+
+    /**
+     * @return the number of lines of the file
+     */
+    public long getLineCount() {
+        return this.index.getLineCount();
+    }
+
+    /**
+     * @param lineNumber 1-based line number
+     * @return the offset of the first byte of the line
+     * @throws IOException
+     */
+    public long getOffset(long lineNumber) throws IOException {
+        return seek(lineNumber).startOffset;
+    }
+
+    /**
+     * @param lineNumber 1-based line number
+     * @return the content of the line, without terminator
+     * @throws IOException
+     */
+    public String getLine(long lineNumber) throws IOException {
+        return getLines(lineNumber, 1).get(0);
+    }
+
+    /**
+     * @param from 1-based number of the first line
+     * @param count maximum number of lines to return
+     * @return the lines, without terminators
+     * @throws IOException
+     */
+    public List<String> getLines(long from, int count) throws IOException {
+        long to = Math.min(from + count, this.index.getLineCount() + 1);
+        List<String> ret = new ArrayList<String>((int) Math.max(to - from, 0));
+        if (from >= to) {
+            return ret;
+        }
+        MappedLineScanner scanner = seek(from);
+        LineView view = new LineView(this.charset);
+        for (long n = from; ; n++) {
+            view.reset(scanner.buffer, scanner.lineStart, scanner.lineEnd);
+            ret.add(view.toString());
+            if (n + 1 >= to || !scanner.next()) {
+                break;
+            }
+        }
+        scanner.close();
+        return ret;
+    }
+
+    /**
+     * @return a scanner positioned at the specified line
+     */
+    private MappedLineScanner seek(long lineNumber) throws IOException {
+        if (lineNumber < 1 || lineNumber > this.index.getLineCount()) {
+            throw new IndexOutOfBoundsException("Line " + lineNumber + " out of [1, " + this.index.getLineCount() + "]");
+        }
+        MappedLineScanner scanner = new MappedLineScanner(this.channel, this.index.getCheckpointOffset(lineNumber), this.index.getFileSize(), WINDOW_SIZE);
+        long skip = (lineNumber - 1) % this.index.getInterval();
+        for (long i = 0; i <= skip; i++) {
+            if (!scanner.next()) {
+                throw new IOException("Line " + lineNumber + " not found. Stale index?");
+            }
+        }
+        return scanner;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.raf.close();
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Sparse line-offset index of a text file, giving access to any line in
+ * {@code O(1)} seeks plus the scan of less than {@code interval} lines. See
+ * {@link IndexedLineFile}.
+ * <br><br>
+ * The index keeps the start offset of one every {@code interval} lines, and is
+ * stored on disk delta-encoded with variable-length integers, along with the
+ * size and modification time of the file, to detect stale indexes.
+ * <br><br>
+ * Indexes can be built in a dedicated pass ({@link #build(File, String, int)})
+ * or as a side product of a {@link LineReader} pass (see
+ * {@link LineReader#setIndexFile(File, int)}).
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public final class LineIndex {
+
+    public static final int DEFAULT_INTERVAL = 1024;
+    private static final int MAGIC = 0x424c4958;
+    private static final int VERSION = 1;
+
+    private final int interval;
+    private final long lineCount;
+    private final long fileSize;
+    private final long lastModified;
+    /**
+     * Start offset of lines {@code 1 + i * interval}.
+     */
+    private final long[] offsets;
+
+    private LineIndex(int interval, long lineCount, long fileSize, long lastModified, long[] offsets) {
+        this.interval = interval;
+        this.lineCount = lineCount;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Scans the file bytes (without decoding) and builds its index.
+     *
+     * @param file
+     * @param charset charset of the file. Must encode line terminators as
+     * single bytes
+     * @param interval number of lines between indexed offsets
+     * @return the index
+     * @throws IOException
+     */
+    public static LineIndex build(File file, String charset, int interval) throws IOException {
+        if (!LineScanner.isAsciiCompatible(Charset.forName(charset))) {
+            throw new IllegalArgumentException("Charset " + charset + " can not be indexed at byte level");
+        }
+        Builder builder = new Builder(interval);
+        long lastModified = file.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long size = raf.length();
+            MappedLineScanner scanner = new MappedLineScanner(raf.getChannel(), 0, size, MappedLineScanner.DEFAULT_WINDOW_SIZE);
+            long lineNumber = 0;
+            while (scanner.next()) {
+                builder.add(++lineNumber, scanner.startOffset);
+            }
+            return builder.build(lineNumber, size, lastModified);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads an index from disk.
+     *
+     * @param indexFile
+     * @return the index
+     * @throws IOException if the file is not a valid index
+     */
+    public static LineIndex read(File indexFile) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException(indexFile + " is not a line index");
+            }
+            int version = dis.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported line index version " + version);
+            }
+            int interval = dis.readInt();
+            long lineCount = dis.readLong();
+            long fileSize = dis.readLong();
+            long lastModified = dis.readLong();
+            int entries = dis.readInt();
+            long[] offsets = new long[entries];
+            long offset = 0;
+            for (int i = 0; i < entries; i++) {
+                offset += readVarLong(dis);
+                offsets[i] = offset;
+            }
+            return new LineIndex(interval, lineCount, fileSize, lastModified, offsets);
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Writes the index to disk.
+     *
+     * @param indexFile
+     * @throws IOException
+     */
+    public void write(File indexFile) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(this.interval);
+            dos.writeLong(this.lineCount);
+            dos.writeLong(this.fileSize);
+            dos.writeLong(this.lastModified);
+            dos.writeInt(this.offsets.length);
+            long previous = 0;
+            for (long offset : this.offsets) {
+                writeVarLong(dos, offset - previous);
+                previous = offset;
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream dos, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            dos.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dos.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream dis) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = dis.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new EOFException("Malformed variable-length integer");
+    }
+
+    /**
+     * @param file
+     * @return whether the file has not changed since it was indexed
+     */
+    public boolean isValidFor(File file) {
+        return file.length() == this.fileSize && file.lastModified() == this.lastModified;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @param lineNumber 1-based line number
+     * @return the start offset of the closest indexed line not after the
+     * specified one, which is line {@code lineNumber - (lineNumber - 1) %
+     * interval}
+     */
+    long getCheckpointOffset(long lineNumber) {
+        return this.offsets[(int) ((lineNumber - 1) / this.interval)];
+    }
+
+    /**
+     * Accumulates the offsets of a sequential pass.
+     */
+    static final class Builder {
+
+        private final int interval;
+        private long[] offsets = new long[64];
+        private int size;
+
+        Builder(int interval) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("interval must be positive");
+            }
+            this.interval = interval;
+        }
+
+        /**
+         * @param lineNumber 1-based number of a line. Lines must be added in
+         * order
+         * @param startOffset offset of the first byte of the line
+         */
+        void add(long lineNumber, long startOffset) {
+            if ((lineNumber - 1) % this.interval != 0) {
+                return;
+            }
+            if (this.size == this.offsets.length) {
+                this.offsets = Arrays.copyOf(this.offsets, this.size * 2);
+            }
+            this.offsets[this.size++] = startOffset;
+        }
+
+        LineIndex build(long lineCount, long fileSize, long lastModified) {
+            return new LineIndex(this.interval, lineCount, fileSize, lastModified, Arrays.copyOf(this.offsets, this.size));
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes lines to a set of output streams, encoding them with an explicit
+ * charset into a reusable buffer that is written to the sinks in batches.
+ * <br><br>
+ * A batch is written, and the sinks flushed, (a <i>sync</i>) when any of these
+ * happens:
+ * <ul>
+ * <li>The buffered bytes reach the flush threshold
+ * ({@link #setFlushBytes(int)}).</li>
+ * <li>The flush interval ({@link #setFlushInterval(long, TimeUnit)}), if any,
+ * has elapsed since the oldest buffered line was written.</li>
+ * <li>{@link #pipe(BufferedReader)} finds that no more input is immediately
+ * available, unless disabled by {@link #setSyncWhenIdle(boolean)}.</li>
+ * <li>{@link #sync()} or {@link #close()} are called.</li>
+ * </ul>
+ * Batches only contain whole lines and are written to each sink while holding
+ * its monitor, so lines from several instances sharing a sink are never
+ * interleaved. Instances are thread-safe.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public final class LinePipe {
+
+    public static final int DEFAULT_FLUSH_BYTES = 64 * 1024;
+
+    private static ScheduledExecutorService scheduler;
+
+    private final OutputStream[] sinks;
+    /**
+     * Number of buffered bytes already written to each sink, by a sync that
+     * failed in a later sink.
+     */
+    private final int[] written;
+    private final CharsetEncoder encoder;
+    private final CharBuffer separator = CharBuffer.wrap("\n");
+    private ByteBuffer buffer;
+    private int flushBytes = DEFAULT_FLUSH_BYTES;
+    private long flushIntervalNanos;
+    private boolean syncWhenIdle = true;
+    private ScheduledFuture<?> scheduledSync;
+    private IOException asyncError;
+    private long lines;
+    private boolean closed;
+
+    /**
+     * @param charset charset used to encode the lines
+     * @param sinks streams to write to. {@code null} elements are ignored
+     */
+    public LinePipe(Charset charset, OutputStream... sinks) {
+        if (charset == null) {
+            throw new IllegalArgumentException("Charset can not be null");
+        }
+        this.sinks = sinks;
+        this.written = new int[sinks.length];
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * @param flushBytes number of buffered bytes that triggers a sync
+     */
+    public synchronized void setFlushBytes(int flushBytes) {
+        if (flushBytes <= 0) {
+            throw new IllegalArgumentException("Flush bytes must be greater than zero");
+        }
+        this.flushBytes = flushBytes;
+    }
+
+    /**
+     * @param interval maximum time a line stays buffered. Zero (default)
+     * disables time based syncs
+     * @param unit
+     */
+    public synchronized void setFlushInterval(long interval, TimeUnit unit) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Interval can not be negative");
+        }
+        this.flushIntervalNanos = unit.toNanos(interval);
+    }
+
+    /**
+     * @param syncWhenIdle whether {@link #pipe(BufferedReader)} syncs before
+     * waiting for more input. Enabled by default, so that the output of
+     * interactive sources is not held back
+     */
+    public synchronized void setSyncWhenIdle(boolean syncWhenIdle) {
+        this.syncWhenIdle = syncWhenIdle;
+    }
+
+    /**
+     * @return number of lines written
+     */
+    public synchronized long getLineCount() {
+        return this.lines;
+    }
+
+    /**
+     * Writes all the lines of the reader, with their line terminators
+     * normalized to {@code "\n"}, and syncs at the end.
+     *
+     * @param br
+     * @return number of lines piped
+     * @throws IOException
+     */
+    public long pipe(BufferedReader br) throws IOException {
+        long count = 0;
+        String line;
+        while ((line = br.readLine()) != null) {
+            writeLine(line);
+            count++;
+            if (this.syncWhenIdle && !br.ready()) {
+                sync();
+            }
+        }
+        sync();
+        return count;
+    }
+
+    /**
+     * Buffers the line followed by {@code "\n"}.
+     *
+     * @param line
+     * @throws IOException
+     */
+    public synchronized void writeLine(CharSequence line) throws IOException {
+        checkState();
+        if (this.buffer == null || this.buffer.position() == 0 && this.buffer.capacity() < this.flushBytes) {
+            this.buffer = ByteBuffer.allocate(this.flushBytes);
+        }
+        encode(CharBuffer.wrap(line));
+        this.lines++;
+        if (this.buffer.position() >= this.flushBytes) {
+            sync();
+        } else if (this.flushIntervalNanos > 0 && this.scheduledSync == null) {
+            this.scheduledSync = getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    scheduledSync();
+                }
+            }, this.flushIntervalNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Writes the buffered lines to the sinks and flushes them. If a sink
+     * fails, the lines are kept buffered, and the next sync only writes to
+     * each sink the bytes it has not received yet.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        checkState();
+        if (this.scheduledSync != null) {
+            this.scheduledSync.cancel(false);
+            this.scheduledSync = null;
+        }
+        int length = this.buffer == null ? 0 : this.buffer.position();
+        for (int i = 0; i < this.sinks.length; i++) {
+            OutputStream o = this.sinks[i];
+            if (o != null) {
+                synchronized (o) {
+                    if (length > this.written[i]) {
+                        o.write(this.buffer.array(), this.written[i], length - this.written[i]);
+                        this.written[i] = length;
+                    }
+                    o.flush();
+                }
+            }
+        }
+        Arrays.fill(this.written, 0);
+        if (this.buffer != null) {
+            ((Buffer) this.buffer).clear();
+        }
+    }
+
+    /**
+     * Syncs and releases this instance. Sinks are not closed.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            this.closed = true;
+        }
+    }
+
+    private synchronized void scheduledSync() {
+        this.scheduledSync = null;
+        if (this.closed || this.asyncError != null) {
+            return;
+        }
+        try {
+            sync();
+        } catch (IOException ex) {
+            this.asyncError = ex;
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (this.closed) {
+            throw new IOException("Pipe closed");
+        }
+        if (this.asyncError != null) {
+            throw this.asyncError;
+        }
+    }
+
+    /**
+     * Encodes the line and the separator in a single coding operation, so
+     * that charsets writing a byte order mark (UTF-16) write it only once.
+     */
+    private void encode(CharBuffer line) {
+        this.encoder.reset();
+        while (this.encoder.encode(line, this.buffer, false).isOverflow()) {
+            grow();
+        }
+        CharBuffer sep = this.separator.duplicate();
+        if (line.hasRemaining()) {
+            // incomplete surrogate pair, malformed once followed by the separator
+            sep = CharBuffer.allocate(line.remaining() + sep.remaining());
+            sep.put(line).put(this.separator.duplicate());
+            ((Buffer) sep).flip();
+        }
+        while (this.encoder.encode(sep, this.buffer, true).isOverflow()) {
+            grow();
+        }
+        while (this.encoder.flush(this.buffer).isOverflow()) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        ByteBuffer bb = ByteBuffer.allocate(this.buffer.capacity() * 2);
+        ((Buffer) this.buffer).flip();
+        bb.put(this.buffer);
+        this.buffer = bb;
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "line-pipe-sync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            scheduler = executor;
+        }
+        return scheduler;
+    }
+}
@@ -16,15 +16,52 @@
 package org.brutusin.commons.io;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.brutusin.commons.org.apache.commons.io.input.CountingInputStream;
 
 /**
  * Template utility class to process text input streams, line by line.
+ * <br><br>
+ * Inputs whose charset encodes line terminators as single bytes (UTF-8,
+ * US-ASCII, ISO-8859-*...) are processed by a faster engine, that scans the
+ * bytes for line terminators (memory-mapped, in case of files) and decodes
+ * each line straight from them. Other charsets are decoded by a generic
+ * {@link java.io.Reader}.
+ * <br><br>
+ * Instances created from a {@link FileChunk} only process the lines of the
+ * chunk, see {@link ChunkedFileProcessor}.
+ * <br><br>
+ * Subclasses can override {@link #processLine(LineView)} to process lines
+ * without allocating a {@code String} per line.
+ * <br><br>
+ * Lines can also be delivered in blocks to {@link #processLines(List)}, see
+ * {@link #setBatchSize(int, long)}.
+ * <br><br>
+ * When processed at byte level, the exact offsets of each line are available
+ * to the callbacks ({@link #getLineStartOffset()},
+ * {@link #getLineEndOffset()}), so processing can be checkpointed and later
+ * resumed with {@link #LineReader(File, String, long, long)}.
+ * <br><br>
+ * Growing files can be followed, see {@link #setFollow(long, TimeUnit)}.
+ * <br><br>
+ * A {@link LineIndex} of the file can be written as a side product of the
+ * processing, see {@link #setIndexFile(File, int)}.
+ * <br><br>
+ * Gzip and zip files (and streams, on request) are transparently decompressed
+ * in a pipeline thread (and in parallel, for BGZF multi-member gzip files), see
+ * {@link #setDetectCompression(boolean)}.
  *
  * @author Ignacio del Valle Alles idelvall@brutusin.org
  */
@@ -32,11 +69,32 @@ public abstract class LineReader {
 
     public static final String DEFAULT_CHARSET = "UTF-8";
     private CountingInputStream is;
-    private boolean exit = false;
+    private final File file;
+    private final FileChunk chunk;
+    private volatile boolean exit = false;
     private long lineNumber;
     private String nextLine;
     private String line;
+    private boolean lastLine;
     private final Charset charset;
+    private LineScanner scanner;
+    private LineView view;
+    private long lineStartOffset = -1;
+    private long lineEndOffset = -1;
+    private long followMaxDelayNanos;
+    private volatile FollowLineScanner follower;
+    private File indexFile;
+    private LineIndex.Builder indexBuilder;
+    private boolean detectCompression;
+    private int batchMaxLines;
+    private long batchMaxBytes;
+    private RuntimeException handlerException;
+    /**
+     * End offsets of the lines of the current block, when processed at byte
+     * level.
+     */
+    private long[] batchEndOffsets;
+    private long batchStartOffset;
 
     /**
      * Creates an instance using {@value #DEFAULT_CHARSET} as the text charset
@@ -57,45 +115,448 @@ public abstract class LineReader {
      */
     public LineReader(InputStream is, String charset) throws UnsupportedCharsetException {
         this.is = new CountingInputStream(is);
+        this.file = null;
+        this.chunk = null;
+        this.charset = Charset.forName(charset);
+    }
+
+    /**
+     * Creates an instance using {@value #DEFAULT_CHARSET} as the text charset
+     * of the file
+     *
+     * @param file file to process
+     */
+    public LineReader(File file) {
+        this(file, DEFAULT_CHARSET);
+    }
+
+    /**
+     * Creates an instance using the specified charset
+     *
+     * @param file file to process
+     * @param charset charset of the file
+     * @throws UnsupportedCharsetException
+     */
+    public LineReader(File file, String charset) throws UnsupportedCharsetException {
+        if (file == null) {
+            throw new IllegalArgumentException("file can not be null");
+        }
+        this.file = file;
+        this.chunk = null;
         this.charset = Charset.forName(charset);
+        this.detectCompression = true;
     }
-    
+
     /**
-     * Synchronously processes the input stream
+     * Creates an instance that processes the lines of a file chunk. Line
+     * numbers are global to the file if the line offset of the chunk is known,
+     * and relative to the chunk otherwise.
+     *
+     * @param chunk file chunk to process
+     * @param charset charset of the file. Must encode line terminators as
+     * single bytes
+     * @throws UnsupportedCharsetException
+     * @throws IllegalArgumentException if the charset does not encode line
+     * terminators as single bytes, or the chunk is a
+     * {@link FileChunk#isWholeFile() whole file}
+     */
+    public LineReader(FileChunk chunk, String charset) throws UnsupportedCharsetException {
+        if (chunk == null) {
+            throw new IllegalArgumentException("chunk can not be null");
+        }
+        if (chunk.isWholeFile()) {
+            throw new IllegalArgumentException("Chunk " + chunk + " must be processed with LineReader(File, String)");
+        }
+        this.charset = Charset.forName(charset);
+        if (!LineScanner.isAsciiCompatible(this.charset)) {
+            throw new IllegalArgumentException("Charset " + charset + " can not be processed in chunks");
+        }
+        this.file = chunk.getFile();
+        this.chunk = chunk;
+    }
+
+    /**
+     * Creates an instance that resumes the processing of a file from a
+     * checkpoint, typically a previous value of {@link #getLineEndOffset()}
+     * and {@link #getLineNumber()}. Lines before the offset are skipped
+     * without being read.
+     *
+     * @param file file to process
+     * @param charset charset of the file. Must encode line terminators as
+     * single bytes
+     * @param offset offset of the first byte of a line
+     * @param lineNumber number of lines before the offset
+     * @throws UnsupportedCharsetException
+     * @throws IllegalArgumentException if the charset does not encode line
+     * terminators as single bytes
+     */
+    public LineReader(File file, String charset, long offset, long lineNumber) throws UnsupportedCharsetException {
+        this(new FileChunk(file, 0, offset, Long.MAX_VALUE, lineNumber), charset);
+        if (offset < 0 || lineNumber < 0) {
+            throw new IllegalArgumentException("offset and lineNumber can not be negative");
+        }
+    }
+
+    /**
+     * Enables the batch mode: lines are passed in blocks to
+     * {@link #processLines(List)} instead of one by one to
+     * {@code processLine}. Exit and interruption are checked once per block.
+     * To be called before {@link #run()}.
+     *
+     * @param maxLines maximum number of lines per block
+     * @param maxBytes size in bytes of the lines (excluding terminators) above
+     * which a block is delivered, even if not full. For inputs not processed
+     * at byte level, the size of the lines is measured in chars.
+     * {@code Long.MAX_VALUE} for no limit
+     */
+    public final void setBatchSize(int maxLines, long maxBytes) {
+        if (maxLines <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Batch limits must be positive");
+        }
+        this.batchMaxLines = maxLines;
+        this.batchMaxBytes = maxBytes;
+    }
+
+    /**
+     * Enables the follow mode, like {@code tail -F}: instead of stopping at the
+     * end of the file, {@link #run()} waits for new lines to be appended and
+     * processes them as they arrive, until {@link #exit()} is called or the
+     * thread is interrupted. Only terminated lines are processed.
+     * <br><br>
+     * If the file is truncated or rotated (replaced by a new file at the same
+     * path, after the remaining lines of the old one are processed),
+     * processing restarts from the beginning of the file and
+     * {@link #onRestart()} is called. Appends are detected by a
+     * {@link java.nio.file.WatchService} on the directory of the file if
+     * available, and by polling with an exponential backoff otherwise.
+     * <br><br>
+     * Only available for instances created from a {@link File} whose charset
+     * encodes line terminators as single bytes. To be called before
+     * {@link #run()}.
+     *
+     * @param maxPollDelay maximum time between checks of the file when no
+     * changes are notified
+     * @param unit
+     */
+    public final void setFollow(long maxPollDelay, TimeUnit unit) {
+        if (this.file == null || !LineScanner.isAsciiCompatible(this.charset)) {
+            throw new IllegalStateException("Follow mode requires a file in a charset with single-byte line terminators");
+        }
+        if (this.chunk != null && this.chunk.getEnd() != Long.MAX_VALUE) {
+            throw new IllegalStateException("Follow mode is not available for bounded chunks");
+        }
+        if (maxPollDelay <= 0) {
+            throw new IllegalArgumentException("maxPollDelay must be positive");
+        }
+        this.followMaxDelayNanos = unit.toNanos(maxPollDelay);
+    }
+
+    /**
+     * Makes {@link #run()} write a {@link LineIndex} of the file once it has
+     * been completely processed (not stopped by {@link #exit()} or an
+     * exception), for later random access with {@link IndexedLineFile}.
+     * <br><br>
+     * Only available for instances created with
+     * {@link #LineReader(File, String)} whose charset encodes line terminators
+     * as single bytes, not in follow mode. To be called before {@link #run()}.
+     *
+     * @param indexFile file to write the index to
+     * @param interval number of lines between indexed offsets, see
+     * {@link LineIndex#DEFAULT_INTERVAL}
+     */
+    public final void setIndexFile(File indexFile, int interval) {
+        if (this.file == null || this.chunk != null || !LineScanner.isAsciiCompatible(this.charset)) {
+            throw new IllegalStateException("Indexes can only be built for whole files in a charset with single-byte line terminators");
+        }
+        this.indexBuilder = new LineIndex.Builder(interval);
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Sets whether gzip and zip inputs are detected (by their first bytes) and
+     * decompressed. Enabled by default for files, and disabled for streams,
+     * whose bytes are processed as given unless requested. Decompression runs
+     * in a separate thread, one buffer ahead of the line processing, and the
+     * members of BGZF files (multi-member gzip files written by {@code bgzip})
+     * are inflated in parallel. The content of a zip input is the
+     * concatenation of its entries.
+     * <br><br>
+     * Line offsets of compressed inputs refer to the decompressed content.
+     * Chunks, resumed readers and the follow mode always read raw bytes. To be
+     * called before {@link #run()}.
+     *
+     * @param detectCompression
+     */
+    public final void setDetectCompression(boolean detectCompression) {
+        this.detectCompression = detectCompression;
+    }
+
+    /**
+     * Synchronously processes the input
      * @throws IOException
      * @throws InterruptedException 
      */
     public final void run() throws IOException, InterruptedException {
-        InputStreamReader isr = new InputStreamReader(this.is, this.charset);
-        BufferedReader br = new BufferedReader(isr);
-        this.line = null;
-        this.lineNumber = 0;
         try {
-            do {
+            runInput();
+        } finally {
+            onFinish();
+        }
+    }
+
+    private void runInput() throws IOException, InterruptedException {
+        if (this.file == null) {
+            InputStream in = this.detectCompression ? Decompression.wrap(this.is) : this.is;
+            try {
+                runInputStream(in);
+            } finally {
+                if (in != this.is) {
+                    in.close();
+                }
+            }
+        } else if (this.followMaxDelayNanos > 0) {
+            if (this.indexBuilder != null) {
+                throw new IllegalStateException("Indexes can not be built in follow mode");
+            }
+            long start = this.chunk != null ? this.chunk.getStart() : 0;
+            long lineOffset = this.chunk != null ? Math.max(0, this.chunk.getLineOffset()) : 0;
+            this.follower = new FollowLineScanner(this.file, start, StreamLineScanner.DEFAULT_BUFFER_SIZE, this.followMaxDelayNanos);
+            try {
                 if (this.exit) {
-                    return;
+                    this.follower.stop();
                 }
-                if(Thread.currentThread().isInterrupted()){
-                throw new InterruptedException();
+                runScanner(this.follower, lineOffset);
+            } finally {
+                this.follower = null;
             }
-                this.nextLine = br.readLine();
+        } else if (this.chunk != null) {
+            RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long end = Math.min(this.chunk.getEnd(), channel.size());
+                runScanner(new MappedLineScanner(channel, this.chunk.getStart(), end, MappedLineScanner.DEFAULT_WINDOW_SIZE), Math.max(0, this.chunk.getLineOffset()));
+            } finally {
+                raf.close();
+            }
+        } else {
+            Decompression.Format format = this.detectCompression ? Decompression.detect(this.file) : null;
+            if (format == null && LineScanner.isAsciiCompatible(this.charset)) {
+                long lastModified = this.file.lastModified();
+                RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+                try {
+                    FileChannel channel = raf.getChannel();
+                    long size = channel.size();
+                    if (runScanner(new MappedLineScanner(channel, 0, size, MappedLineScanner.DEFAULT_WINDOW_SIZE), 0) && this.indexBuilder != null) {
+                        this.indexBuilder.build(this.lineNumber, size, lastModified).write(this.indexFile);
+                    }
+                } finally {
+                    raf.close();
+                }
+            } else {
+                if (format != null && this.indexBuilder != null) {
+                    throw new IllegalStateException("Indexes can not be built for compressed files");
+                }
+                InputStream in = format == null ? new FileInputStream(this.file) : Decompression.open(this.file, format, 0);
+                this.is = new CountingInputStream(in);
                 try {
-                    if (this.line != null) {
-                        processLine(this.line);
-                        if (this.exit) {
-                            return;
-                        }
+                    runInputStream(this.is);
+                } finally {
+                    this.is.close();
+                }
+            }
+        }
+    }
+
+    private void runInputStream(InputStream in) throws IOException, InterruptedException {
+        if (LineScanner.isAsciiCompatible(this.charset)) {
+            runScanner(new StreamLineScanner(in, StreamLineScanner.DEFAULT_BUFFER_SIZE), 0);
+        } else {
+            runStream(in);
+        }
+    }
+
+    /**
+     * @return {@code true} if the end of the input was reached
+     */
+    private boolean runScanner(LineScanner scanner, long lineOffset) throws IOException, InterruptedException {
+        this.scanner = scanner;
+        this.view = new LineView(this.charset);
+        this.line = null;
+        this.lineNumber = lineOffset;
+        try {
+            if (this.batchMaxLines > 0) {
+                return scanBatches(scanner);
+            }
+            while (!this.exit) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                if (!scanner.next()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException();
                     }
+                    return true;
+                }
+                checkRestart();
+                this.lineNumber++;
+                this.line = null;
+                this.lineStartOffset = scanner.startOffset;
+                this.lineEndOffset = scanner.endOffset;
+                if (this.indexBuilder != null) {
+                    this.indexBuilder.add(this.lineNumber, this.lineStartOffset);
+                }
+                // may read ahead, so before taking the view of the buffer
+                this.lastLine = scanner.isLast();
+                this.view.reset(scanner.buffer, scanner.lineStart, scanner.lineEnd);
+                try {
+                    processLine(this.view);
                 } catch (Exception e) {
                     onExceptionFound(e);
-                } finally {
-                    this.lineNumber++;
-                    this.line = this.nextLine;
                 }
-            } while (this.line != null);
+            }
+            return false;
         } finally {
-            onFinish();
+            scanner.close();
+        }
+    }
+
+    private boolean scanBatches(LineScanner scanner) throws IOException, InterruptedException {
+        // a line of a restarted file has been scanned and is still to be added
+        boolean scanned = false;
+        while (!this.exit) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            if (!scanned) {
+                if (!scanner.next()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException();
+                    }
+                    return true;
+                }
+                checkRestart();
+            }
+            scanned = false;
+            List<String> batch = new ArrayList<String>(Math.min(this.batchMaxLines, 1024));
+            if (this.batchEndOffsets == null) {
+                this.batchEndOffsets = new long[Math.min(this.batchMaxLines, 1024)];
+            }
+            this.batchStartOffset = scanner.startOffset;
+            long bytes = 0;
+            while (true) {
+                this.view.reset(scanner.buffer, scanner.lineStart, scanner.lineEnd);
+                if (batch.size() == this.batchEndOffsets.length) {
+                    this.batchEndOffsets = Arrays.copyOf(this.batchEndOffsets, this.batchEndOffsets.length * 2);
+                }
+                this.batchEndOffsets[batch.size()] = scanner.endOffset;
+                batch.add(this.view.toString());
+                bytes += scanner.lineEnd - scanner.lineStart;
+                this.lineNumber++;
+                this.lineStartOffset = scanner.startOffset;
+                this.lineEndOffset = scanner.endOffset;
+                if (this.indexBuilder != null) {
+                    this.indexBuilder.add(this.lineNumber, this.lineStartOffset);
+                }
+                this.lastLine = scanner.isLast();
+                if (batch.size() >= this.batchMaxLines || bytes >= this.batchMaxBytes || !scanner.ready() || !scanner.next()) {
+                    break;
+                }
+                if (this.follower != null && this.follower.takeReset()) {
+                    // the block ends at the rotation (or truncation) boundary
+                    scanned = true;
+                    break;
+                }
+            }
+            processBatch(batch);
+            if (scanned) {
+                restart();
+            }
         }
+        return false;
+    }
+
+    private void checkRestart() {
+        FollowLineScanner f = this.follower;
+        if (f != null && f.takeReset()) {
+            restart();
+        }
+    }
+
+    private void restart() {
+        this.lineNumber = 0;
+        onRestart();
+    }
+
+    private void readBatches(BufferedReader br) throws IOException, InterruptedException {
+        String next = br.readLine();
+        while (next != null && !this.exit) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            List<String> batch = new ArrayList<String>(Math.min(this.batchMaxLines, 1024));
+            long chars = 0;
+            do {
+                batch.add(next);
+                chars += next.length();
+                this.lineNumber++;
+                next = br.readLine();
+            } while (next != null && batch.size() < this.batchMaxLines && chars < this.batchMaxBytes);
+            this.lastLine = next == null;
+            processBatch(batch);
+        }
+    }
+
+    private void processBatch(List<String> batch) {
+        this.line = batch.get(batch.size() - 1);
+        try {
+            processLines(batch);
+        } catch (RuntimeException e) {
+            if (e == this.handlerException) {
+                // already passed to onExceptionFound, that rethrew it
+                throw e;
+            }
+            onExceptionFound(e);
+        } catch (Exception e) {
+            onExceptionFound(e);
+        } finally {
+            this.handlerException = null;
+        }
+    }
+
+    private void runStream(InputStream in) throws IOException, InterruptedException {
+        InputStreamReader isr = new InputStreamReader(in, this.charset);
+        BufferedReader br = new BufferedReader(isr);
+        this.view = new LineView(this.charset);
+        this.line = null;
+        this.lineNumber = 0;
+        if (this.batchMaxLines > 0) {
+            readBatches(br);
+            return;
+        }
+        do {
+            if (this.exit) {
+                return;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            this.nextLine = br.readLine();
+            this.lastLine = this.nextLine == null;
+            try {
+                if (this.line != null) {
+                    this.view.reset(this.line);
+                    processLine(this.view);
+                    if (this.exit) {
+                        return;
+                    }
+                }
+            } catch (Exception e) {
+                onExceptionFound(e);
+            } finally {
+                this.lineNumber++;
+                this.line = this.nextLine;
+            }
+        } while (this.line != null);
     }
 
     /**
@@ -103,15 +564,28 @@ public abstract class LineReader {
      */
     public final void exit() {
         this.exit = true;
+        FollowLineScanner f = this.follower;
+        if (f != null) {
+            f.stop();
+        }
     }
 
     /**
-     * Callback method. Guaranteed to be called after processing. Default
-     * implementation does nothing
+     * Callback method. Guaranteed to be called after processing, also if the
+     * input can not be opened. Default implementation does nothing
      */
     protected void onFinish() {
     }
 
+    /**
+     * Callback method. Called in follow mode when the file has been truncated
+     * or rotated, before processing its first line. Line numbers and offsets
+     * restart from the beginning of the file. Default implementation does
+     * nothing
+     */
+    protected void onRestart() {
+    }
+
     /**
      * Returns the number of the current processing line. 1-based
      * @return the line number
@@ -120,11 +594,45 @@ public abstract class LineReader {
         return this.lineNumber;
     }
 
+    /**
+     * @return the chunk being processed, or {@code null} if the whole input is
+     * processed
+     */
+    protected final FileChunk getChunk() {
+        return this.chunk;
+    }
+
     /**
      * @return {@code true} if is last line. {@code false} otherwise
      */
     protected final boolean isLastLine() {
-        return this.nextLine == null;
+        return this.lastLine;
+    }
+
+    /**
+     * Returns the offset of the first byte of the current line (of the last
+     * line of the block, when {@link #processLines(List)} is called).
+     *
+     * @return the offset, or {@code -1} if the input is not processed at byte
+     * level (charsets that do not encode line terminators as single bytes)
+     */
+    protected final long getLineStartOffset() {
+        return this.lineStartOffset;
+    }
+
+    /**
+     * Returns the offset after the terminator of the current line (of the last
+     * line of the block, when {@link #processLines(List)} is called), that is,
+     * the offset where the next line starts. Along with
+     * {@link #getLineNumber()}, it is the checkpoint to pass to
+     * {@link #LineReader(File, String, long, long)} for resuming the processing
+     * after this line.
+     *
+     * @return the offset, or {@code -1} if the input is not processed at byte
+     * level
+     */
+    protected final long getLineEndOffset() {
+        return this.lineEndOffset;
     }
 
    /**
@@ -132,6 +640,12 @@ public abstract class LineReader {
     * @return number of bytes read until now
     */
     protected final long getBytesBuffered() {
+        if (this.scanner != null) {
+            return this.scanner.getBytesRead();
+        }
+        if (this.is == null) {
+            return 0;
+        }
         return this.is.getByteCount();
     }
 
@@ -140,16 +654,89 @@ public abstract class LineReader {
      * @return 
      */
     public final String getLine() {
+        if (this.line == null && this.view != null && this.scanner != null) {
+            this.line = this.view.toString();
+        }
         return line;
     }
 
     /**
-     * The actual processing to perform.
+     * The actual processing to perform. Default implementation passes the
+     * line as a {@code String} to {@link #processLine(String)}.
+     * <br><br>
+     * Override this method to process lines without allocation. The view is
+     * reused for subsequent lines, so it must not be retained.
+     *
+     * @param line view of the current line
+     * @throws Exception
+     */
+    protected void processLine(LineView line) throws Exception {
+        processLine(line.toString());
+    }
+
+    /**
+     * The actual processing to perform
      * @param line current line
      * @throws Exception 
      */
     protected abstract void processLine(String line) throws Exception;
 
+    /**
+     * Batch processing, only called in batch mode (see
+     * {@link #setBatchSize(int, long)}). When this method is called, the line
+     * accessors ({@link #getLineNumber()}, {@link #getLine()},
+     * {@link #isLastLine()}, {@link #getLineStartOffset()} and
+     * {@link #getLineEndOffset()}) refer to the last line of the block, so the
+     * block can be checkpointed as a whole.
+     * <br><br>
+     * Default implementation passes the lines one by one to
+     * {@link #processLine(LineView)}, so subclasses overriding any of the line
+     * callbacks work also in batch mode, as in the non-batch mode: the
+     * accessors are moved to each line as it is passed, and its exceptions
+     * are passed to {@link #onExceptionFound(Exception)}.
+     *
+     * @param lines block of consecutive lines. A new list is passed on each
+     * call, so it can be retained by the implementation
+     * @throws Exception
+     */
+    protected void processLines(List<String> lines) throws Exception {
+        long last = this.lineNumber;
+        String lastContent = this.line;
+        boolean lastBlock = this.lastLine;
+        long lastStart = this.lineStartOffset;
+        long lastEnd = this.lineEndOffset;
+        boolean offsets = this.lineEndOffset >= 0 && this.batchEndOffsets != null
+                && lines.size() <= this.batchEndOffsets.length && this.batchEndOffsets[lines.size() - 1] == lastEnd;
+        try {
+            for (int i = 0; i < lines.size() && !this.exit; i++) {
+                this.lineNumber = last - lines.size() + i + 1;
+                this.line = lines.get(i);
+                this.lastLine = lastBlock && i == lines.size() - 1;
+                if (offsets) {
+                    this.lineStartOffset = i == 0 ? this.batchStartOffset : this.batchEndOffsets[i - 1];
+                    this.lineEndOffset = this.batchEndOffsets[i];
+                }
+                this.view.reset(this.line);
+                try {
+                    processLine(this.view);
+                } catch (Exception e) {
+                    try {
+                        onExceptionFound(e);
+                    } catch (RuntimeException re) {
+                        this.handlerException = re;
+                        throw re;
+                    }
+                }
+            }
+        } finally {
+            this.lineNumber = last;
+            this.line = lastContent;
+            this.lastLine = lastBlock;
+            this.lineStartOffset = lastStart;
+            this.lineEndOffset = lastEnd;
+        }
+    }
+
     /**
      * Exception handling. Processing continues unless this method throws
      * an uncatched throwable or {@link exit()} is called
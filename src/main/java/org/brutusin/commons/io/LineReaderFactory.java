@@ -0,0 +1,29 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+/**
+ * Creates the {@link LineReader} processing a {@link FileChunk}, typically by
+ * means of {@link LineReader#LineReader(FileChunk, String)}, or of
+ * {@link LineReader#LineReader(java.io.File, String)} if
+ * {@link FileChunk#isWholeFile()}.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public interface LineReaderFactory {
+
+    public LineReader newLineReader(FileChunk chunk);
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Byte-level line splitter used by {@link LineReader} for charsets where
+ * {@code '\n'} and {@code '\r'} are encoded as single bytes that never appear
+ * inside other characters (see {@link #isAsciiCompatible(Charset)}).
+ * <br><br>
+ * Like {@link java.io.BufferedReader#readLine()}, a line is considered to be
+ * terminated by any one of a line feed, a carriage return, or a carriage
+ * return followed immediately by a line feed.
+ * <br><br>
+ * After a successful {@link #next()}, the content of the current line (without
+ * terminator) is in {@code buffer} between {@code lineStart} (inclusive) and
+ * {@code lineEnd} (exclusive), and {@code startOffset} and {@code endOffset}
+ * (after the terminator) are its absolute positions in the input.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+abstract class LineScanner implements Closeable {
+
+    private static final long LF = 0x0A0A0A0A0A0A0A0AL;
+    private static final long CR = 0x0D0D0D0D0D0D0D0DL;
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    ByteBuffer buffer;
+    int lineStart;
+    int lineEnd;
+    long startOffset;
+    long endOffset;
+
+    /**
+     * Advances to the next line.
+     *
+     * @return {@code false} if there are no more lines
+     * @throws IOException
+     */
+    abstract boolean next() throws IOException;
+
+    /**
+     * @return {@code true} if the current line is the last one
+     * @throws IOException
+     */
+    abstract boolean isLast() throws IOException;
+
+    /**
+     * @return whether {@link #next()} can advance without waiting for more
+     * input. If {@code false}, {@link #next()} may still return {@code true}
+     * @throws IOException
+     */
+    boolean ready() throws IOException {
+        return true;
+    }
+
+    /**
+     * @return number of bytes of the input consumed until now
+     */
+    long getBytesRead() {
+        return endOffset;
+    }
+
+    /**
+     * Charsets encoding ASCII characters as single bytes that are never part
+     * of other characters: UTF-8, US-ASCII and the single-byte ISO-8859-* and
+     * windows-125x families. Multi-byte charsets like GBK or Shift_JIS encode
+     * {@code "\r\n"} as ASCII too, but their trail bytes may collide with
+     * ASCII bytes, so they are excluded.
+     *
+     * @param charset
+     * @return whether lines in this charset can be split at byte level
+     */
+    static boolean isAsciiCompatible(Charset charset) {
+        String name = charset.name();
+        return name.equals("UTF-8")
+                || name.equals("US-ASCII")
+                || name.startsWith("ISO-8859-")
+                || name.startsWith("windows-125");
+    }
+
+    /**
+     * Returns the index of the first {@code '\n'} or {@code '\r'} byte of the
+     * buffer in the specified range, or {@code -1} if not found. Eight bytes
+     * are tested at a time. The buffer must be in little-endian order.
+     */
+    static int indexOfEol(ByteBuffer bb, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long w = bb.getLong(i);
+            long x1 = w ^ LF;
+            long x2 = w ^ CR;
+            long t = ((x1 - ONES) & ~x1 | (x2 - ONES) & ~x2) & HIGHS;
+            if (t != 0) {
+                return i + (Long.numberOfTrailingZeros(t) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            byte b = bb.get(i);
+            if (b == '\n' || b == '\r') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
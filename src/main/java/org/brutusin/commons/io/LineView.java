@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reusable, read-only view of the line being processed by a
+ * {@link LineReader}, passed to {@link LineReader#processLine(LineView)}.
+ * <br><br>
+ * The same instance is reused for all the lines of a reader, and its content
+ * is only valid during the callback. Characters are decoded into a shared
+ * buffer the first time they are accessed, and the raw bytes of the line are
+ * available via {@link #bytes()}, so lines can be inspected without any
+ * allocation. Use {@link #toString()} to get a {@code String} copy of the line.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public final class LineView implements CharSequence {
+
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+    private CharsetEncoder encoder;
+    /**
+     * Line bytes, between {@code start} and {@code end}. {@code null} when the
+     * line comes as a {@code String}.
+     */
+    private ByteBuffer buffer;
+    private ByteBuffer readOnly;
+    private int start;
+    private int end;
+    private byte[] scratch;
+    private CharBuffer chars;
+    private boolean decoded;
+    private String string;
+
+    LineView(Charset charset) {
+        this.charset = charset;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Points the view to a line in a byte buffer.
+     */
+    void reset(ByteBuffer buffer, int start, int end) {
+        if (this.buffer != buffer) {
+            this.buffer = buffer;
+            this.readOnly = buffer.asReadOnlyBuffer();
+        }
+        this.start = start;
+        this.end = end;
+        this.decoded = false;
+        this.string = null;
+    }
+
+    /**
+     * Points the view to an already decoded line.
+     */
+    void reset(String line) {
+        this.buffer = null;
+        this.readOnly = null;
+        this.decoded = true;
+        this.string = line;
+    }
+
+    /**
+     * Returns a read-only buffer whose remaining bytes are the encoded line,
+     * without terminator. The buffer is shared with the reader, so it must not
+     * be used after the callback.
+     * <br><br>
+     * Lines read by the byte-level engine (files and streams in charsets that
+     * encode line terminators as single bytes) are backed by the bytes of the
+     * input. For the rest (other charsets, and lines passed as strings in
+     * batch mode) the line is encoded on each call.
+     *
+     * @return the line bytes
+     */
+    public ByteBuffer bytes() {
+        if (this.buffer == null) {
+            if (this.encoder == null) {
+                this.encoder = this.charset.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            try {
+                return this.encoder.encode(CharBuffer.wrap(this.string)).asReadOnlyBuffer();
+            } catch (CharacterCodingException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+        ((Buffer) this.readOnly).limit(this.end);
+        ((Buffer) this.readOnly).position(this.start);
+        return this.readOnly;
+    }
+
+    /**
+     * @return the number of bytes of the line, without terminator, if backed
+     * by bytes. Otherwise {@code -1}
+     */
+    public int byteLength() {
+        return this.buffer == null ? -1 : this.end - this.start;
+    }
+
+    private CharSequence content() {
+        if (!this.decoded) {
+            decode();
+        }
+        if (this.string != null) {
+            return this.string;
+        }
+        return this.chars;
+    }
+
+    private void decode() {
+        int length = this.end - this.start;
+        int capacity = (int) Math.ceil(length * (double) this.decoder.maxCharsPerByte());
+        if (this.chars == null || this.chars.capacity() < capacity) {
+            this.chars = CharBuffer.allocate(Math.max(capacity, 256));
+        }
+        ((Buffer) this.chars).clear();
+        ByteBuffer bb = this.buffer;
+        int i = this.start;
+        // ASCII prefix, one byte per char
+        while (i < this.end) {
+            byte b = bb.get(i);
+            if (b < 0) {
+                break;
+            }
+            this.chars.put((char) b);
+            i++;
+        }
+        if (i < this.end) {
+            ByteBuffer in = bb.duplicate();
+            ((Buffer) in).limit(this.end);
+            ((Buffer) in).position(i);
+            this.decoder.reset();
+            this.decoder.decode(in, this.chars, true);
+            this.decoder.flush(this.chars);
+        }
+        ((Buffer) this.chars).flip();
+        this.decoded = true;
+    }
+
+    @Override
+    public int length() {
+        return content().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return content().charAt(index);
+    }
+
+    /**
+     * Returns a subsequence of the line. Unlike the view itself, the returned
+     * sequence is a copy that can be used after the callback.
+     *
+     * @param start
+     * @param end
+     * @return
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return content().subSequence(start, end).toString();
+    }
+
+    /**
+     * @param prefix
+     * @return whether the line starts with the specified prefix
+     */
+    public boolean startsWith(CharSequence prefix) {
+        CharSequence cs = content();
+        int n = prefix.length();
+        if (n > cs.length()) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (cs.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param ch
+     * @param fromIndex
+     * @return the index of the first occurrence of the character at or after
+     * {@code fromIndex}, or {@code -1}
+     */
+    public int indexOf(char ch, int fromIndex) {
+        CharSequence cs = content();
+        for (int i = Math.max(fromIndex, 0); i < cs.length(); i++) {
+            if (cs.charAt(i) == ch) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return a {@code String} copy of the line
+     */
+    @Override
+    public String toString() {
+        if (this.string == null) {
+            int length = this.end - this.start;
+            if (this.buffer.hasArray()) {
+                this.string = new String(this.buffer.array(), this.buffer.arrayOffset() + this.start, length, this.charset);
+            } else {
+                if (this.scratch == null || this.scratch.length < length) {
+                    this.scratch = new byte[Math.max(length, 256)];
+                }
+                ByteBuffer in = this.readOnly;
+                ((Buffer) in).limit(this.end);
+                ((Buffer) in).position(this.start);
+                in.get(this.scratch, 0, length);
+                this.string = new String(this.scratch, 0, length, this.charset);
+            }
+        }
+        return this.string;
+    }
+}
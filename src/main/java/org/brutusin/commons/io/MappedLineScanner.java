@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link LineScanner} over a region of a file, memory-mapped in windows of
+ * {@code windowSize} bytes. Windows are remapped from the start of the first
+ * incomplete line, so lines never span two windows.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+class MappedLineScanner extends LineScanner {
+
+    static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final int windowSize;
+    private long limit;
+    private long windowOffset;
+    private int position;
+
+    /**
+     * @param channel channel to read from. Not closed by this scanner
+     * @param start offset of the first line
+     * @param limit offset where scanning stops
+     * @param windowSize size of the mapped windows
+     */
+    MappedLineScanner(FileChannel channel, long start, long limit, int windowSize) {
+        this.channel = channel;
+        this.limit = limit;
+        this.windowSize = windowSize;
+        this.windowOffset = start;
+        this.position = 0;
+        this.endOffset = start;
+    }
+
+    @Override
+    boolean next() throws IOException {
+        while (true) {
+            long offset = windowOffset + position;
+            if (offset >= limit) {
+                return false;
+            }
+            if (buffer == null || position >= buffer.limit()) {
+                map(offset, windowSize);
+            }
+            int eol = indexOfEol(buffer, position, buffer.limit());
+            boolean windowAtEnd = windowOffset + buffer.limit() >= limit;
+            if (eol < 0) {
+                if (!windowAtEnd) {
+                    remapLarger(offset);
+                    continue;
+                }
+                setLine(position, buffer.limit(), buffer.limit());
+                return true;
+            }
+            if (buffer.get(eol) == '\r') {
+                if (eol + 1 < buffer.limit()) {
+                    setLine(position, eol, buffer.get(eol + 1) == '\n' ? eol + 2 : eol + 1);
+                    return true;
+                } else if (!windowAtEnd) {
+                    remapLarger(offset);
+                    continue;
+                }
+            }
+            setLine(position, eol, eol + 1);
+            return true;
+        }
+    }
+
+    @Override
+    boolean isLast() {
+        return endOffset >= limit;
+    }
+
+    /**
+     * @param limit new scanning limit
+     */
+    void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    long getLimit() {
+        return limit;
+    }
+
+    private void setLine(int start, int end, int next) {
+        this.lineStart = start;
+        this.lineEnd = end;
+        this.startOffset = windowOffset + start;
+        this.endOffset = windowOffset + next;
+        this.position = next;
+    }
+
+    private void remapLarger(long offset) throws IOException {
+        int current = buffer.limit() - position;
+        if (current == Integer.MAX_VALUE) {
+            throw new IOException("Line starting at offset " + offset + " is longer than " + Integer.MAX_VALUE + " bytes");
+        }
+        long size = Math.max((long) windowSize, 2L * current);
+        map(offset, (int) Math.min(size, Integer.MAX_VALUE));
+    }
+
+    private void map(long offset, int size) throws IOException {
+        long length = Math.min(size, limit - offset);
+        MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        mbb.order(ByteOrder.LITTLE_ENDIAN);
+        this.buffer = mbb;
+        this.windowOffset = offset;
+        this.position = 0;
+    }
+
+    @Override
+    public void close() {
+        this.buffer = null;
+    }
+}
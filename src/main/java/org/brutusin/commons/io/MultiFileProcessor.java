@@ -0,0 +1,300 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Concurrent line processing of multiple files on a single work-stealing pool.
+ * <br><br>
+ * Each file is a task of a {@link ForkJoinPool}. Files larger than the chunk
+ * size are split in chunks aligned to line boundaries (see
+ * {@link ChunkedFileProcessor#split(File, String, long, boolean)}) that are
+ * forked as subtasks, so small files do not pay a thread startup and large
+ * files do not become stragglers. Every file (or chunk) is processed by its
+ * own {@link LineReader}, with the usual {@code processLine},
+ * {@code onExceptionFound} and {@code onFinish} contract.
+ * <br><br>
+ * Compressed files and files in charsets that can not be split are processed
+ * whole: the chunk passed to the factory spans the entire file and is flagged
+ * as {@link FileChunk#isWholeFile()}, and readers for them must be created
+ * with {@link LineReader#LineReader(File, String)}.
+ * <br><br>
+ * The pool is created along with the processor and reused by subsequent runs.
+ * Its threads are daemon and terminate by themselves when idle.
+ * <br><br>
+ * Aggregate progress can be polled from any thread while running, by means of
+ * {@link #getBytesProcessed()} (approximate for compressed files) and
+ * {@link #getTotalBytes()}.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public final class MultiFileProcessor {
+
+    public static final long DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private final ForkJoinPool pool;
+    private final long chunkSize;
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong completedBytes = new AtomicLong();
+    private final AtomicLong completedFiles = new AtomicLong();
+    private final Set<Running> running = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param parallelism number of threads. If {@code 0}, it is set to the
+     * number of available processors
+     * @param chunkSize size above which files are split in chunks
+     */
+    public MultiFileProcessor(int parallelism, long chunkSize) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException("parallelism can not be negative");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.pool = new ForkJoinPool(parallelism == 0 ? Runtime.getRuntime().availableProcessors() : parallelism);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Processes the files and returns once all of them have been processed.
+     *
+     * @param files files to process
+     * @param charset charset of the files
+     * @param factory creates the reader of each file or chunk
+     * @throws IOException the first exception thrown by a reader. The rest of
+     * the files (and chunks) are not processed then
+     * @throws InterruptedException
+     */
+    public void run(List<File> files, final String charset, final LineReaderFactory factory) throws IOException, InterruptedException {
+        final boolean splittable = LineScanner.isAsciiCompatible(Charset.forName(charset));
+        final Job job = new Job();
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        this.totalBytes.addAndGet(total);
+        final List<File> fileList = new ArrayList<File>(files);
+        ForkJoinTask<Void> root = this.pool.submit(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(fileList.size());
+                for (File file : fileList) {
+                    tasks.add(new FileTask(file, charset, splittable, factory, job));
+                }
+                invokeAll(tasks);
+            }
+        });
+        try {
+            root.get();
+        } catch (InterruptedException ex) {
+            cancel(job);
+            root.cancel(false);
+            throw ex;
+        } catch (ExecutionException ex) {
+            job.error.compareAndSet(null, ex.getCause());
+        }
+        Throwable th = job.error.get();
+        if (th == null) {
+            return;
+        } else if (th instanceof IOException) {
+            throw (IOException) th;
+        } else if (th instanceof InterruptedException) {
+            throw (InterruptedException) th;
+        } else if (th instanceof RuntimeException) {
+            throw (RuntimeException) th;
+        } else if (th instanceof Error) {
+            throw (Error) th;
+        }
+        throw new RuntimeException(th);
+    }
+
+    /**
+     * @return total size of the files submitted to {@code run} until now
+     */
+    public long getTotalBytes() {
+        return this.totalBytes.get();
+    }
+
+    /**
+     * @return number of bytes processed until now, estimated from the byte
+     * counts of the running readers. The estimate for compressed files is
+     * approximate: it is based on the decompressed bytes read (bounded by the
+     * file size) until the file is completed
+     */
+    public long getBytesProcessed() {
+        long ret = this.completedBytes.get();
+        for (Running r : this.running) {
+            ret += r.getBytesProcessed();
+        }
+        return ret;
+    }
+
+    /**
+     * @return number of files completely processed until now
+     */
+    public long getFilesCompleted() {
+        return this.completedFiles.get();
+    }
+
+    /**
+     * Stops the readers of an interrupted or failed run, and prevents new ones
+     * from starting. The pool is shared with other runs, so it is not shut down.
+     */
+    private void cancel(Job job) {
+        job.cancelled = true;
+        for (Running r : this.running) {
+            if (r.job == job) {
+                r.reader.exit();
+            }
+        }
+    }
+
+    private static final class Job {
+
+        private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        private volatile boolean cancelled;
+    }
+
+    /**
+     * Records the first error of a run and cancels the rest of it. Pool
+     * threads are reused by later runs, so they are not left interrupted.
+     */
+    private void fail(Job job, Throwable th) {
+        if (th instanceof InterruptedException) {
+            Thread.interrupted();
+        }
+        if (job.error.compareAndSet(null, th)) {
+            cancel(job);
+        }
+    }
+
+    private final class FileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+        private final String charset;
+        private final boolean splittable;
+        private final LineReaderFactory factory;
+        private final Job job;
+
+        FileTask(File file, String charset, boolean splittable, LineReaderFactory factory, Job job) {
+            this.file = file;
+            this.charset = charset;
+            this.splittable = splittable;
+            this.factory = factory;
+            this.job = job;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                long length = this.file.length();
+                boolean raw = this.splittable && Decompression.detect(this.file) == null;
+                if (raw && length > chunkSize) {
+                    List<FileChunk> chunks = ChunkedFileProcessor.split(this.file, this.charset, chunkSize, false);
+                    List<ChunkTask> tasks = new ArrayList<ChunkTask>(chunks.size());
+                    for (FileChunk chunk : chunks) {
+                        tasks.add(new ChunkTask(chunk, this.factory, this.job));
+                    }
+                    invokeAll(tasks);
+                } else {
+                    process(new FileChunk(this.file, 0, 0, length, 0, !raw), this.factory, this.job);
+                }
+            } catch (Throwable th) {
+                fail(this.job, th);
+            }
+            completedFiles.incrementAndGet();
+        }
+    }
+
+    private final class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChunk chunk;
+        private final LineReaderFactory factory;
+        private final Job job;
+
+        ChunkTask(FileChunk chunk, LineReaderFactory factory, Job job) {
+            this.chunk = chunk;
+            this.factory = factory;
+            this.job = job;
+        }
+
+        @Override
+        protected void compute() {
+            process(this.chunk, this.factory, this.job);
+        }
+    }
+
+    private void process(FileChunk chunk, LineReaderFactory factory, Job job) {
+        Running r = null;
+        try {
+            if (job.cancelled) {
+                return;
+            }
+            r = new Running(job, chunk, factory.newLineReader(chunk));
+            this.running.add(r);
+            if (job.cancelled) {
+                r.reader.exit();
+            }
+            r.reader.run();
+        } catch (Throwable th) {
+            fail(job, th);
+        } finally {
+            if (r != null) {
+                this.running.remove(r);
+            }
+            this.completedBytes.addAndGet(chunk.getLength());
+        }
+    }
+
+    private static final class Running {
+
+        private final Job job;
+        private final FileChunk chunk;
+        private final LineReader reader;
+
+        Running(Job job, FileChunk chunk, LineReader reader) {
+            this.job = job;
+            this.chunk = chunk;
+            this.reader = reader;
+        }
+
+        long getBytesProcessed() {
+            long bytes = this.reader.getBytesBuffered();
+            if (this.reader.getChunk() != null) {
+                // offsets in the file
+                bytes -= this.chunk.getStart();
+            }
+            return Math.max(0, Math.min(bytes, this.chunk.getLength()));
+        }
+    }
+}
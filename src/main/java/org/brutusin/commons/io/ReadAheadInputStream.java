@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Input stream that reads its source in a dedicated thread, one buffer ahead
+ * of the consumer. Two buffers are handed over between both threads, so
+ * reading (and decompressing, for a decompressing source) the next buffer
+ * overlaps with the processing of the current one.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+final class ReadAheadInputStream extends InputStream {
+
+    static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private final InputStream source;
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(2);
+    private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<Chunk>(3);
+    private final Thread thread;
+    private Chunk current;
+    private volatile boolean closed;
+
+    /**
+     * @param source stream to read from. Closed when this stream is closed
+     * @param bufferSize size of each buffer
+     */
+    ReadAheadInputStream(InputStream source, int bufferSize) {
+        this.source = source;
+        this.free.add(new Chunk(bufferSize));
+        this.free.add(new Chunk(bufferSize));
+        this.thread = new Thread("read-ahead") {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        };
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void readAhead() {
+        try {
+            while (!this.closed) {
+                Chunk chunk = this.free.take();
+                int n;
+                try {
+                    n = this.source.read(chunk.data, 0, chunk.data.length);
+                    while (n == 0) {
+                        n = this.source.read(chunk.data, 0, chunk.data.length);
+                    }
+                } catch (IOException ex) {
+                    this.full.put(new Chunk(ex));
+                    return;
+                } catch (RuntimeException ex) {
+                    this.full.put(new Chunk(new IOException(ex)));
+                    return;
+                }
+                chunk.position = 0;
+                chunk.length = n;
+                this.full.put(chunk);
+                if (n < 0) {
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            // closed
+        }
+    }
+
+    /**
+     * @return the current chunk with remaining bytes, or {@code null} at the
+     * end of the stream
+     */
+    private Chunk current() throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        if (this.current != null && this.current.error != null) {
+            // the source is not readable anymore
+            throw this.current.error;
+        }
+        if (this.current != null && this.current.position < this.current.length) {
+            return this.current;
+        }
+        if (this.current != null) {
+            if (this.current.length < 0) {
+                return null;
+            }
+            this.free.add(this.current);
+            this.current = null;
+        }
+        try {
+            this.current = this.full.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (this.current.error != null) {
+            throw this.current.error;
+        }
+        return this.current.length < 0 ? null : this.current;
+    }
+
+    @Override
+    public int read() throws IOException {
+        Chunk chunk = current();
+        if (chunk == null) {
+            return -1;
+        }
+        return chunk.data[chunk.position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        Chunk chunk = current();
+        if (chunk == null) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - chunk.position);
+        System.arraycopy(chunk.data, chunk.position, b, off, n);
+        chunk.position += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        Chunk chunk = this.current;
+        return chunk == null || chunk.length < 0 ? 0 : chunk.length - chunk.position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.thread.interrupt();
+        this.source.close();
+    }
+
+    private static final class Chunk {
+
+        private final byte[] data;
+        private int position;
+        private int length;
+        private IOException error;
+
+        Chunk(int size) {
+            this.data = new byte[size];
+        }
+
+        Chunk(IOException error) {
+            this.data = null;
+            this.error = error;
+        }
+    }
+}
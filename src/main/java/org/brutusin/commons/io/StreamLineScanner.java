@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link LineScanner} over an input stream, read into a heap buffer that is
+ * compacted (and grown if a line does not fit) as lines are consumed.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+final class StreamLineScanner extends LineScanner {
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private byte[] array;
+    /**
+     * Stream offset of the first byte of the buffer.
+     */
+    private long bufferOffset;
+    /**
+     * Start of the unconsumed bytes.
+     */
+    private int position;
+    /**
+     * End of the valid bytes.
+     */
+    private int limit;
+    private boolean eof;
+    private long bytesRead;
+
+    /**
+     * @param in stream to read from. Not closed by this scanner
+     * @param bufferSize initial size of the buffer
+     */
+    StreamLineScanner(InputStream in, int bufferSize) {
+        this.in = in;
+        setArray(new byte[Math.max(bufferSize, 16)]);
+    }
+
+    private void setArray(byte[] array) {
+        this.array = array;
+        this.buffer = ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    boolean next() throws IOException {
+        // release the previous line
+        this.lineStart = this.position;
+        this.lineEnd = this.position;
+        int from = this.position;
+        while (true) {
+            int eol = indexOfEol(this.buffer, from, this.limit);
+            if (eol >= 0) {
+                if (this.array[eol] == '\r') {
+                    if (eol + 1 < this.limit) {
+                        setLine(eol, this.array[eol + 1] == '\n' ? eol + 2 : eol + 1);
+                        return true;
+                    } else if (!this.eof) {
+                        from = eol - this.position;
+                        fill();
+                        from += this.position;
+                        continue;
+                    }
+                }
+                setLine(eol, eol + 1);
+                return true;
+            }
+            if (this.eof) {
+                if (this.position < this.limit) {
+                    setLine(this.limit, this.limit);
+                    return true;
+                }
+                return false;
+            }
+            from = this.limit - this.position;
+            fill();
+            from += this.position;
+        }
+    }
+
+    private void setLine(int end, int next) {
+        this.lineStart = this.position;
+        this.lineEnd = end;
+        this.startOffset = this.bufferOffset + this.position;
+        this.endOffset = this.bufferOffset + next;
+        this.position = next;
+    }
+
+    @Override
+    boolean isLast() throws IOException {
+        while (this.position >= this.limit && !this.eof) {
+            fill();
+        }
+        return this.position >= this.limit;
+    }
+
+    /**
+     * Reads more bytes, keeping the current line and the unconsumed ones.
+     */
+    private void fill() throws IOException {
+        int keep = this.lineStart;
+        if (keep > 0) {
+            System.arraycopy(this.array, keep, this.array, 0, this.limit - keep);
+            this.bufferOffset += keep;
+            this.limit -= keep;
+            this.position -= keep;
+            this.lineStart = 0;
+            this.lineEnd -= keep;
+        }
+        if (this.limit == this.array.length) {
+            byte[] newArray = new byte[this.array.length * 2];
+            System.arraycopy(this.array, 0, newArray, 0, this.limit);
+            setArray(newArray);
+        }
+        int n = this.in.read(this.array, this.limit, this.array.length - this.limit);
+        if (n < 0) {
+            this.eof = true;
+        } else {
+            this.limit += n;
+            this.bytesRead += n;
+        }
+    }
+
+    /**
+     * @return number of bytes read from the stream until now
+     */
+    @Override
+    long getBytesRead() {
+        return this.bytesRead;
+    }
+
+    @Override
+    public void close() {
+        this.buffer = null;
+        this.array = null;
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Output stream that copies everything written to it to several sinks, each
+ * one decoupled from the others by its own bounded ring buffer drained by a
+ * dedicated writer thread. A slow sink (a network socket, for example) does
+ * not throttle the fast ones; what happens when its buffer fills is decided
+ * by the {@link SlowSinkPolicy} of the tee.
+ * <br><br>
+ * A failing sink is detached: its error is available from
+ * {@link Sink#getError()}, later data is discarded for it and
+ * {@link #close()} rethrows the first error found. Instances are not safe for
+ * concurrent writers.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public final class TeeOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    public enum SlowSinkPolicy {
+
+        /**
+         * The writer waits until the slow sink has room.
+         */
+        BLOCK,
+        /**
+         * Writes that do not fit entirely in the sink buffer are discarded for
+         * that sink.
+         */
+        DROP,
+        /**
+         * Bytes that do not fit in the sink buffer are appended to a temporary
+         * file, drained in order by the sink writer thread.
+         */
+        SPILL
+    }
+
+    private final Sink[] sinks;
+    private final byte[] single = new byte[1];
+    private boolean closed;
+
+    public TeeOutputStream(OutputStream... sinks) {
+        this(DEFAULT_BUFFER_SIZE, SlowSinkPolicy.BLOCK, sinks);
+    }
+
+    /**
+     * @param bufferSize size of the ring buffer of each sink
+     * @param policy behaviour when the buffer of a sink is full
+     * @param sinks streams to copy the data to. Flushed and closed when this
+     * stream is closed
+     */
+    public TeeOutputStream(int bufferSize, SlowSinkPolicy policy, OutputStream... sinks) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be greater than zero");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Policy can not be null");
+        }
+        for (int i = 0; i < sinks.length; i++) {
+            if (sinks[i] == null) {
+                throw new IllegalArgumentException("Sink " + i + " is null");
+            }
+        }
+        this.sinks = new Sink[sinks.length];
+        for (int i = 0; i < sinks.length; i++) {
+            this.sinks[i] = new Sink(i, sinks[i], bufferSize, policy);
+        }
+        // once all the buffers are allocated, so that no thread is leaked
+        for (Sink sink : this.sinks) {
+            sink.thread.start();
+        }
+    }
+
+    public int getSinkCount() {
+        return this.sinks.length;
+    }
+
+    public Sink getSink(int index) {
+        return this.sinks[index];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.single[0] = (byte) b;
+        write(this.single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return;
+        }
+        for (Sink sink : this.sinks) {
+            sink.offer(b, off, len);
+        }
+    }
+
+    /**
+     * Waits until every sink has written and flushed the data written so far.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        for (Sink sink : this.sinks) {
+            sink.flush();
+        }
+    }
+
+    /**
+     * Waits until every sink has written its pending data and closes them.
+     *
+     * @throws IOException the first error found by any sink
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        for (Sink sink : this.sinks) {
+            sink.close();
+        }
+        boolean interrupted = false;
+        for (Sink sink : this.sinks) {
+            while (true) {
+                try {
+                    sink.thread.join();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (Sink sink : this.sinks) {
+            if (sink.error != null) {
+                throw sink.error;
+            }
+        }
+    }
+
+    /**
+     * A destination of the tee, with its lag metrics.
+     */
+    public static final class Sink {
+
+        private final OutputStream out;
+        private final SlowSinkPolicy policy;
+        private final byte[] ring;
+        private final byte[] chunk;
+        private final Thread thread;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = this.lock.newCondition();
+        private final Condition notFull = this.lock.newCondition();
+        private final Condition flushed = this.lock.newCondition();
+        private int head;
+        private int size;
+        private File spillFile;
+        private RandomAccessFile spill;
+        private long spillRead;
+        private long spillWrite;
+        private int inFlight;
+        private long flushRequests;
+        private long flushesDone;
+        private boolean closed;
+        private long bytesWritten;
+        private long bytesDropped;
+        private long bytesSpilled;
+        private long maxLag;
+        private volatile IOException error;
+
+        private Sink(int index, OutputStream out, int bufferSize, SlowSinkPolicy policy) {
+            this.out = out;
+            this.policy = policy;
+            this.ring = new byte[bufferSize];
+            this.chunk = new byte[Math.min(bufferSize, 64 * 1024)];
+            this.thread = new Thread("tee-sink-" + index) {
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * @return bytes accepted for this sink and not written to it yet
+         */
+        public long getLag() {
+            this.lock.lock();
+            try {
+                return lag();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * @return highest lag observed
+         */
+        public long getMaxLag() {
+            this.lock.lock();
+            try {
+                return this.maxLag;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        public long getBytesWritten() {
+            this.lock.lock();
+            try {
+                return this.bytesWritten;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        public long getBytesDropped() {
+            this.lock.lock();
+            try {
+                return this.bytesDropped;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * @return total bytes that have gone through the spill file
+         */
+        public long getBytesSpilled() {
+            this.lock.lock();
+            try {
+                return this.bytesSpilled;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * @return error that detached this sink, or {@code null}
+         */
+        public IOException getError() {
+            return this.error;
+        }
+
+        private long lag() {
+            return this.size + this.spillWrite - this.spillRead + this.inFlight;
+        }
+
+        private void offer(byte[] b, int off, int len) throws IOException {
+            this.lock.lock();
+            try {
+                if (this.error != null) {
+                    this.bytesDropped += len;
+                    return;
+                }
+                if (this.policy == SlowSinkPolicy.BLOCK) {
+                    while (len > 0) {
+                        while (this.size == this.ring.length && this.error == null) {
+                            try {
+                                this.notFull.await();
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException();
+                            }
+                        }
+                        if (this.error != null) {
+                            this.bytesDropped += len;
+                            return;
+                        }
+                        int n = put(b, off, len);
+                        off += n;
+                        len -= n;
+                    }
+                } else if (this.policy == SlowSinkPolicy.DROP) {
+                    if (len > this.ring.length - this.size) {
+                        this.bytesDropped += len;
+                        return;
+                    }
+                    put(b, off, len);
+                } else {
+                    if (this.spillWrite == this.spillRead) {
+                        int n = put(b, off, len);
+                        off += n;
+                        len -= n;
+                    }
+                    if (len > 0) {
+                        spill(b, off, len);
+                    }
+                }
+                this.maxLag = Math.max(this.maxLag, lag());
+                this.notEmpty.signal();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private int put(byte[] b, int off, int len) {
+            int n = Math.min(len, this.ring.length - this.size);
+            int tail = (this.head + this.size) % this.ring.length;
+            int first = Math.min(n, this.ring.length - tail);
+            System.arraycopy(b, off, this.ring, tail, first);
+            System.arraycopy(b, off + first, this.ring, 0, n - first);
+            this.size += n;
+            return n;
+        }
+
+        private int take(byte[] b) {
+            int n = Math.min(b.length, this.size);
+            int first = Math.min(n, this.ring.length - this.head);
+            System.arraycopy(this.ring, this.head, b, 0, first);
+            System.arraycopy(this.ring, 0, b, first, n - first);
+            this.head = (this.head + n) % this.ring.length;
+            this.size -= n;
+            return n;
+        }
+
+        private void spill(byte[] b, int off, int len) throws IOException {
+            if (this.spill == null) {
+                // deleted by the drainer once done
+                this.spillFile = File.createTempFile("tee-spill", ".tmp");
+                try {
+                    this.spill = new RandomAccessFile(this.spillFile, "rw");
+                } catch (IOException ex) {
+                    this.spillFile.delete();
+                    throw ex;
+                }
+            }
+            this.spill.seek(this.spillWrite);
+            this.spill.write(b, off, len);
+            this.spillWrite += len;
+            this.bytesSpilled += len;
+        }
+
+        private int unspill(byte[] b) throws IOException {
+            this.spill.seek(this.spillRead);
+            int n = this.spill.read(b, 0, (int) Math.min(b.length, this.spillWrite - this.spillRead));
+            this.spillRead += n;
+            if (this.spillRead == this.spillWrite) {
+                this.spillRead = 0;
+                this.spillWrite = 0;
+                this.spill.setLength(0);
+            }
+            return n;
+        }
+
+        private void flush() throws IOException {
+            this.lock.lock();
+            try {
+                if (this.error != null) {
+                    return;
+                }
+                long request = ++this.flushRequests;
+                this.notEmpty.signal();
+                while (this.flushesDone < request && this.error == null) {
+                    try {
+                        this.flushed.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private void close() {
+            this.lock.lock();
+            try {
+                this.closed = true;
+                this.notEmpty.signal();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private void drain() {
+            try {
+                while (true) {
+                    int n = 0;
+                    long flushRequest = -1;
+                    this.lock.lock();
+                    try {
+                        while (this.size == 0 && this.spillWrite == this.spillRead && !this.closed && this.flushesDone == this.flushRequests) {
+                            this.notEmpty.awaitUninterruptibly();
+                        }
+                        if (this.size > 0) {
+                            n = take(this.chunk);
+                            this.notFull.signalAll();
+                        } else if (this.spillWrite > this.spillRead) {
+                            n = unspill(this.chunk);
+                        } else if (this.flushesDone < this.flushRequests) {
+                            flushRequest = this.flushRequests;
+                        } else {
+                            break;
+                        }
+                        this.inFlight = n;
+                    } finally {
+                        this.lock.unlock();
+                    }
+                    if (n > 0) {
+                        this.out.write(this.chunk, 0, n);
+                    } else {
+                        this.out.flush();
+                    }
+                    this.lock.lock();
+                    try {
+                        this.inFlight = 0;
+                        this.bytesWritten += n;
+                        if (flushRequest >= 0) {
+                            this.flushesDone = flushRequest;
+                            this.flushed.signalAll();
+                        }
+                    } finally {
+                        this.lock.unlock();
+                    }
+                }
+                this.out.close();
+            } catch (IOException ex) {
+                fail(ex);
+            } catch (RuntimeException ex) {
+                fail(new IOException(ex));
+            } finally {
+                if (this.spill != null) {
+                    try {
+                        this.spill.close();
+                    } catch (IOException ex) {
+                        // ignore
+                    }
+                    this.spillFile.delete();
+                }
+            }
+        }
+
+        private void fail(IOException ex) {
+            this.lock.lock();
+            try {
+                this.error = ex;
+                this.bytesDropped += lag();
+                this.head = 0;
+                this.size = 0;
+                this.spillRead = 0;
+                this.spillWrite = 0;
+                this.inFlight = 0;
+                this.notFull.signalAll();
+                this.flushed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+            try {
+                this.out.close();
+            } catch (IOException ignored) {
+                // the first error is the one reported
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -28,8 +29,10 @@ import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -38,10 +41,19 @@ import java.util.List;
 import java.util.Locale;
 import java.util.ServiceLoader;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import org.brutusin.commons.io.LinePipe;
 import org.brutusin.commons.io.LineReader;
 
 public final class Miscellaneous {
@@ -54,6 +66,18 @@ public final class Miscellaneous {
         }
     };
 
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+    private static final int PIPE_FLUSH_THRESHOLD = 1024 * 1024;
+    private static final long PIPE_TRANSFER_SIZE = 8 * 1024 * 1024;
+    private static final ThreadLocal<byte[]> PIPE_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[PIPE_BUFFER_SIZE];
+        }
+    };
+
+    private static volatile Executor pipeExecutor;
+
     private Miscellaneous() {
     }
 
@@ -440,7 +464,9 @@ public final class Miscellaneous {
     }
 
     /**
-     * Asynchronous writing from is to os
+     * Asynchronous writing from is to os, in a new daemon thread. Prefer
+     * {@link #pipeAsync(InputStream, boolean, OutputStream...)} to avoid the
+     * creation of a thread per call.
      *
      * @param is
      * @param errorHandler
@@ -474,31 +500,152 @@ public final class Miscellaneous {
         return pipeAsynchronously(is, LOG_HANDLER, closeResources, os);
     }
 
+    /**
+     * Asynchronous writing from is to os, run in the shared pipe executor
+     * instead of in a new thread.
+     *
+     * @param is
+     * @param closeResources
+     * @param os
+     * @return a future completed with the number of bytes copied, or
+     * exceptionally with the error raised
+     * @see #getPipeExecutor()
+     */
+    public static CompletableFuture<Long> pipeAsync(final InputStream is, final boolean closeResources, final OutputStream... os) {
+        return pipeAsync(getPipeExecutor(), is, closeResources, os);
+    }
+
+    /**
+     * Asynchronous writing from is to os, run in the specified executor.
+     * <br><br>
+     * Pipes block while their input has no data, so a bounded executor must
+     * allow as many concurrent tasks as pipes are expected to be open at the
+     * same time (for example, two per running process when piping its output
+     * and error streams); otherwise queued pipes may never start while the
+     * running ones wait for them.
+     *
+     * @param executor
+     * @param is
+     * @param closeResources
+     * @param os
+     * @return a future completed with the number of bytes copied, or
+     * exceptionally with the error raised
+     */
+    public static CompletableFuture<Long> pipeAsync(Executor executor, final InputStream is, final boolean closeResources, final OutputStream... os) {
+        final CompletableFuture<Long> ret = new CompletableFuture<Long>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ret.complete(pipeSynchronously(is, closeResources, os));
+                } catch (Throwable th) {
+                    ret.completeExceptionally(th);
+                }
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Returns the executor used by {@link #pipeAsync(InputStream, boolean, OutputStream...)}.
+     * By default, an executor that runs each pipe in a new virtual thread when
+     * the running JVM supports them (Java 21+), or in a cached pool of daemon
+     * threads, reused across pipes, otherwise.
+     *
+     * @return
+     */
+    public static Executor getPipeExecutor() {
+        Executor ret = pipeExecutor;
+        if (ret == null) {
+            synchronized (Miscellaneous.class) {
+                ret = pipeExecutor;
+                if (ret == null) {
+                    ret = createPipeExecutor();
+                    pipeExecutor = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Sets the executor used by {@link #pipeAsync(InputStream, boolean, OutputStream...)}.
+     *
+     * @param executor executor to use, or {@code null} to restore the default
+     * one
+     */
+    public static void setPipeExecutor(Executor executor) {
+        pipeExecutor = executor;
+    }
+
+    private static Executor createPipeExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) m.invoke(null);
+        } catch (Exception ex) {
+            final AtomicInteger counter = new AtomicInteger();
+            return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "pipe-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
     public static long pipeSynchronously(final InputStream is, final OutputStream... os) throws InterruptedException, IOException {
         return pipeSynchronously(is, true, os);
     }
 
+    /**
+     * Copies all the bytes from the input stream to the output streams, using
+     * a reusable buffer per thread. Outputs are flushed when the input has no
+     * more bytes immediately available (so that piped process output is
+     * delivered timely) or every {@value #PIPE_FLUSH_THRESHOLD} bytes.
+     * <br><br>
+     * When copying a {@link FileInputStream} to a single
+     * {@link FileOutputStream}, bytes are transferred between their channels by
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * avoiding the copy to user space. Other streams, socket streams included,
+     * do not expose their channel and are copied through the buffer.
+     *
+     * @param is
+     * @param closeResources
+     * @param os
+     * @return number of bytes copied
+     * @throws InterruptedException
+     * @throws IOException
+     */
     public static long pipeSynchronously(final InputStream is, boolean closeResources, final OutputStream... os) throws InterruptedException, IOException {
         try {
             long read = 0;
-            int b;
-            while ((b = is.read()) > 0) {
+            if (os.length == 1 && is instanceof FileInputStream && os[0] instanceof FileOutputStream) {
+                read = transfer(((FileInputStream) is).getChannel(), ((FileOutputStream) os[0]).getChannel());
+            }
+            byte[] buffer = PIPE_BUFFER.get();
+            long unflushed = 0;
+            int n;
+            while ((n = is.read(buffer)) != -1) {
                 if (Thread.interrupted()) {
                     throw new InterruptedException();
                 }
                 for (OutputStream o : os) {
                     if (o != null) {
-                        o.write(b);
+                        o.write(buffer, 0, n);
                     }
                 }
-                if (read > 0 && read % 1024 == 0) {
+                read += n;
+                unflushed += n;
+                if (unflushed >= PIPE_FLUSH_THRESHOLD || is.available() <= 0) {
                     for (OutputStream o : os) {
                         if (o != null) {
                             o.flush();
                         }
                     }
+                    unflushed = 0;
                 }
-                read++;
             }
             return read;
         } finally {
@@ -518,37 +665,72 @@ public final class Miscellaneous {
         }
     }
 
+    /**
+     * Transfers the remaining bytes of the input channel, up to its current
+     * size, leaving its position after them.
+     */
+    private static long transfer(FileChannel in, FileChannel out) throws IOException, InterruptedException {
+        long start = in.position();
+        long position = start;
+        long size = in.size();
+        while (position < size) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long n = in.transferTo(position, Math.min(size - position, PIPE_TRANSFER_SIZE), out);
+            if (n <= 0) {
+                break;
+            }
+            position += n;
+        }
+        in.position(position);
+        return position - start;
+    }
+
     public static long pipeSynchronously(final BufferedReader br, final OutputStream... os) throws IOException {
         return pipeSynchronously(br, true, os);
     }
 
     public static long pipeSynchronously(final BufferedReader br, boolean closeResources, final OutputStream... os) throws IOException {
-        long lineCounter = 0;
-        String line;
+        return pipeSynchronously(br, Charset.defaultCharset(), closeResources, os);
+    }
+
+    /**
+     * Writes the lines read to the output streams, encoded in the specified
+     * charset and terminated by {@code "\n"}.
+     *
+     * @param br
+     * @param charset
+     * @param closeResources
+     * @param os
+     * @return number of lines piped
+     * @throws IOException
+     * @see LinePipe
+     */
+    public static long pipeSynchronously(final BufferedReader br, Charset charset, boolean closeResources, final OutputStream... os) throws IOException {
+        LinePipe pipe = new LinePipe(charset, os);
+        Throwable error = null;
         try {
-            while ((line = br.readLine()) != null) {
-                lineCounter++;
-                for (OutputStream o : os) {
-                    if (o != null) {
-                        synchronized (o) {
-                            o.write((line + "\n").getBytes());
-                            o.flush();
-                        }
-                    }
-                }
-            }
-            return lineCounter;
+            return pipe.pipe(br);
+        } catch (Throwable th) {
+            error = th;
+            throw th;
         } finally {
-            for (OutputStream o : os) {
-                if (o != null) {
-                    o.flush();
+            try {
+                pipe.close();
+            } catch (IOException ex) {
+                // do not mask the original error
+                if (error == null) {
+                    throw ex;
                 }
-            }
-            if (closeResources) {
-                br.close();
-                for (OutputStream o : os) {
-                    if (o != null) {
-                        o.close();
+                error.addSuppressed(ex);
+            } finally {
+                if (closeResources) {
+                    br.close();
+                    for (OutputStream o : os) {
+                        if (o != null) {
+                            o.close();
+                        }
                     }
                 }
             }
@@ -15,9 +15,20 @@
  */
 package org.brutusin.commons.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 /**
  *
@@ -37,7 +48,9 @@ public final class ProcessUtils {
     }
 
     /**
-     * Executes a native process with small stdout and stderr payloads
+     * Executes a native process with small stdout and stderr payloads. The
+     * standard input of the process is closed once started, so processes
+     * reading it get an end of file instead of waiting for input
      *
      * @param env
      * @param workingFolder
@@ -56,30 +69,165 @@ public final class ProcessUtils {
             pb.environment().putAll(env);
         }
         pb.redirectErrorStream(true);
-        int code;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {
-            Process process = pb.start();
             String payload;
             try {
-                code = process.waitFor();
-            } catch (InterruptedException ex) {
-                process.destroy();
-                throw ex;
+                executeProcess(pb, baos, null, 0, 0, null);
+            } catch (ProcessException ex) {
+                payload = Miscellaneous.toString(new ByteArrayInputStream(baos.toByteArray()), "UTF-8");
+                StringBuilder sb = new StringBuilder("Process returned code: " + ex.getRetCode() + ".");
+                if (payload != null) {
+                    sb.append("\n").append(payload);
+                }
+                throw new ProcessException(ex.getRetCode(), sb.toString());
+            }
+            return Miscellaneous.toString(new ByteArrayInputStream(baos.toByteArray()), "UTF-8");
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } catch (TimeoutException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Executes a native process streaming its output. Stdout and stderr are
+     * drained concurrently while the process runs, so processes with large
+     * outputs can not block on a full pipe, and are copied to the specified
+     * streams as they are produced, using constant memory.
+     * <br><br>
+     * The standard input of the process is closed once started, so processes
+     * reading it get an end of file instead of waiting for input.
+     *
+     * @param pb builder of the process. If it redirects the error stream,
+     * stderr arguments apply to the merged output
+     * @param stdout stream to copy stdout to, or {@code null} to discard it.
+     * Not closed
+     * @param stderr stream to copy stderr to, or {@code null} to discard it.
+     * Not closed
+     * @param tailSize number of trailing stderr bytes to include in the
+     * message of the {@code ProcessException} thrown on failure. Zero for none
+     * @param timeout maximum time to wait for the process and the copy of its
+     * output. Zero for no limit
+     * @param unit unit of timeout. Can be {@code null} if there is no limit
+     * @throws ProcessException if process ret code is not 0
+     * @throws InterruptedException the process is destroyed
+     * @throws TimeoutException if the process did not finish in time. The
+     * process is destroyed
+     * @throws IOException if the process can not be started or its output
+     * copied. If a sink fails, the process is destroyed, since its output can
+     * not be drained anymore
+     * @throws IllegalArgumentException if {@code tailSize} or {@code timeout}
+     * are negative, or a timeout is given without unit
+     */
+    public static void executeProcess(ProcessBuilder pb, OutputStream stdout, OutputStream stderr, int tailSize, long timeout, TimeUnit unit) throws ProcessException, InterruptedException, TimeoutException, IOException {
+        if (tailSize < 0 || timeout < 0) {
+            throw new IllegalArgumentException("tailSize and timeout can not be negative");
+        }
+        if (timeout > 0 && unit == null) {
+            throw new IllegalArgumentException("unit can not be null when a timeout is specified");
+        }
+        long deadline = timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : 0;
+        TailOutputStream tail = tailSize > 0 ? new TailOutputStream(tailSize) : null;
+        boolean merged = pb.redirectErrorStream();
+        final Process process = pb.start();
+        CompletableFuture<Long> out = null;
+        CompletableFuture<Long> err = null;
+        boolean completed = false;
+        try {
+            process.getOutputStream().close();
+            BiConsumer<Long, Throwable> onPipeEnd = new BiConsumer<Long, Throwable>() {
+                @Override
+                public void accept(Long bytes, Throwable th) {
+                    if (th != null) {
+                        // nobody drains the pipe anymore, so the process could block on it
+                        process.destroyForcibly();
+                    }
+                }
+            };
+            out = Miscellaneous.pipeAsync(process.getInputStream(), false, merged ? new OutputStream[]{stdout, tail} : new OutputStream[]{stdout});
+            out.whenComplete(onPipeEnd);
+            if (!merged) {
+                err = Miscellaneous.pipeAsync(process.getErrorStream(), false, stderr, tail);
+                err.whenComplete(onPipeEnd);
             }
-            payload = Miscellaneous.toString(process.getInputStream(), "UTF-8");
-            if (code == 0) {
-                return payload;
+            if (timeout > 0) {
+                if (!process.waitFor(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    throw timeoutException(timeout, unit);
+                }
             } else {
+                process.waitFor();
+            }
+            await(out, deadline, timeout, unit);
+            await(err, deadline, timeout, unit);
+            completed = true;
+            int code = process.exitValue();
+            if (code != 0) {
                 StringBuilder sb = new StringBuilder("Process returned code: " + code + ".");
-                if (payload != null) {
-                    sb.append("\n").append(payload);
+                if (tail != null && tail.size() > 0) {
+                    sb.append("\n").append(tail.toString("UTF-8"));
                 }
                 throw new ProcessException(code, sb.toString());
             }
+        } finally {
+            if (process.isAlive()) {
+                process.destroyForcibly();
+            }
+            closeQuietly(process.getInputStream());
+            closeQuietly(process.getErrorStream());
+            if (!completed) {
+                // the pipe tasks end at their next read, now that the streams are closed
+                cancel(out);
+                cancel(err);
+            }
+        }
+    }
+
+    private static TimeoutException timeoutException(long timeout, TimeUnit unit) {
+        return new TimeoutException("Process did not finish in " + timeout + " " + unit.toString().toLowerCase(Locale.ROOT));
+    }
+
+    private static void cancel(Future<Long> future) {
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
         } catch (IOException ex) {
-            throw new RuntimeException(ex);
+            // nothing to do
         }
+    }
 
+    /**
+     * Waits for a pipe, until the deadline if there is a timeout.
+     */
+    private static void await(Future<Long> future, long deadline, long timeout, TimeUnit unit) throws InterruptedException, IOException, TimeoutException {
+        if (future == null) {
+            return;
+        }
+        try {
+            if (timeout > 0) {
+                try {
+                    future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException ex) {
+                    throw timeoutException(timeout, unit);
+                }
+            } else {
+                future.get();
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new IOException(cause);
+        }
     }
 
     public static void createPOSIXNamedPipes(File... files) throws ProcessException, IOException {
@@ -104,4 +252,49 @@ public final class ProcessUtils {
         }
     }
 
+    /**
+     * Keeps the last bytes written to it.
+     */
+    private static final class TailOutputStream extends OutputStream {
+
+        private final byte[] ring;
+        private long count;
+
+        TailOutputStream(int size) {
+            this.ring = new byte[size];
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            this.ring[(int) (this.count++ % this.ring.length)] = (byte) b;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if (len > this.ring.length) {
+                off += len - this.ring.length;
+                this.count += len - this.ring.length;
+                len = this.ring.length;
+            }
+            int pos = (int) (this.count % this.ring.length);
+            int first = Math.min(len, this.ring.length - pos);
+            System.arraycopy(b, off, this.ring, pos, first);
+            System.arraycopy(b, off + first, this.ring, 0, len - first);
+            this.count += len;
+        }
+
+        synchronized int size() {
+            return (int) Math.min(this.count, this.ring.length);
+        }
+
+        synchronized String toString(String charset) throws IOException {
+            int size = size();
+            byte[] bytes = new byte[size];
+            int start = (int) ((this.count - size) % this.ring.length);
+            int first = Math.min(size, this.ring.length - start);
+            System.arraycopy(this.ring, start, bytes, 0, first);
+            System.arraycopy(this.ring, 0, bytes, first, size - first);
+            return new String(bytes, charset);
+        }
+    }
 }
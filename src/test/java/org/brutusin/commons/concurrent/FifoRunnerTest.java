@@ -15,8 +15,19 @@
  */
 package org.brutusin.commons.concurrent;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.ObjectName;
 import org.brutusin.commons.Bean;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -102,4 +113,531 @@ public class FifoRunnerTest {
             }
         }
     }
+
+    /**
+     * Many tiny tasks on more threads than cores, stressing the completion
+     * ring wrap-around and the drainer handoff.
+     */
+    @Test
+    public void testOrderingWithTinyTasks() throws Exception {
+        final int numExecutions = 200000;
+        final FifoTaskExecutor<Integer> fifoRunner = new FifoTaskExecutor(8);
+        final Bean<AssertionError> assertionWrapper = new Bean();
+        final Bean<Integer> intWrapper = new Bean();
+        intWrapper.setValue(-1);
+        try {
+            for (int i = 0; i < numExecutions; i++) {
+                final Integer index = i;
+                fifoRunner.execute(new FifoTask<Integer>() {
+                    public Integer runParallel() {
+                        if (index % 7 == 0) {
+                            throw new RuntimeException(String.valueOf(index));
+                        }
+                        return index;
+                    }
+
+                    public void runSequential(Integer i) {
+                        if (i != intWrapper.getValue() + 1) {
+                            assertionWrapper.setValue(new AssertionError(i));
+                        }
+                        intWrapper.setValue(i);
+                    }
+
+                    public void onError(Throwable th) {
+                        if (Integer.valueOf(th.getMessage()) != intWrapper.getValue() + 1) {
+                            assertionWrapper.setValue(new AssertionError(th.getMessage()));
+                        }
+                        intWrapper.setValue(intWrapper.getValue() + 1);
+                    }
+                });
+            }
+        } finally {
+            fifoRunner.shutdown();
+            fifoRunner.awaitTermination(1, TimeUnit.DAYS);
+        }
+        if (assertionWrapper.getValue() != null) {
+            throw assertionWrapper.getValue();
+        }
+        assertEquals(numExecutions - 1, intWrapper.getValue().intValue());
+    }
+
+    /**
+     * Blocking tasks on a permit-bounded thread-per-task executor.
+     */
+    @Test
+    public void testVirtualThreadExecutor() throws Exception {
+        final int numExecutions = 2000;
+        final FifoTaskExecutor<Integer> fifoRunner = FifoTaskExecutor.newVirtualThreadExecutor(500);
+        final Bean<AssertionError> assertionWrapper = new Bean();
+        final Bean<Integer> intWrapper = new Bean();
+        intWrapper.setValue(-1);
+        long start = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < numExecutions; i++) {
+                final Integer index = i;
+                fifoRunner.execute(new FifoTask<Integer>() {
+                    public Integer runParallel() {
+                        try {
+                            Thread.sleep(index % 3 == 0 ? 20 : 10);
+                        } catch (InterruptedException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                        return index;
+                    }
+
+                    public void runSequential(Integer i) {
+                        if (i != intWrapper.getValue() + 1) {
+                            assertionWrapper.setValue(new AssertionError(i));
+                        }
+                        intWrapper.setValue(i);
+                    }
+
+                    public void onError(Throwable th) {
+                        assertionWrapper.setValue(new AssertionError(th));
+                    }
+                });
+            }
+        } finally {
+            fifoRunner.shutdown();
+            fifoRunner.awaitTermination(1, TimeUnit.DAYS);
+        }
+        if (assertionWrapper.getValue() != null) {
+            throw assertionWrapper.getValue();
+        }
+        assertEquals(numExecutions - 1, intWrapper.getValue().intValue());
+        // sequentially this would take more than 26 seconds
+        assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+
+    /**
+     * A slow head task must not keep the other threads idle when the reorder
+     * window is larger than the pool.
+     */
+    @Test
+    public void testMaxInFlight() throws Exception {
+        final int numExecutions = 32;
+        final FifoTaskExecutor<Integer> fifoRunner = new FifoTaskExecutor(4, 64, null);
+        final AtomicInteger parallelCounter = new AtomicInteger();
+        final Bean<Integer> completedAtHead = new Bean();
+        try {
+            for (int i = 0; i < numExecutions; i++) {
+                final Integer index = i;
+                fifoRunner.execute(new FifoTask<Integer>() {
+                    public Integer runParallel() {
+                        if (index == 0) {
+                            try {
+                                Thread.sleep(500);
+                            } catch (InterruptedException ex) {
+                                throw new RuntimeException(ex);
+                            }
+                        }
+                        parallelCounter.incrementAndGet();
+                        return index;
+                    }
+
+                    public void runSequential(Integer i) {
+                        if (i == 0) {
+                            completedAtHead.setValue(parallelCounter.get());
+                        }
+                    }
+
+                    public void onError(Throwable th) {
+                    }
+                });
+            }
+        } finally {
+            fifoRunner.shutdown();
+            fifoRunner.awaitTermination(1, TimeUnit.DAYS);
+        }
+        assertEquals(numExecutions, completedAtHead.getValue().intValue());
+    }
+
+    /**
+     * Order is kept per key, and a slow key does not delay the others.
+     */
+    @Test
+    public void testPartitionedExecute() throws Exception {
+        final int numKeys = 8;
+        final int numExecutions = 4000;
+        final PartitionedFifoTaskExecutor<Integer, Integer> fifoRunner = new PartitionedFifoTaskExecutor(4, numKeys, 16, null);
+        final Bean<AssertionError> assertionWrapper = new Bean();
+        final int[] lastPerKey = new int[numKeys];
+        final AtomicInteger sequentialCounter = new AtomicInteger();
+        final Bean<Integer> completedAtSlowHead = new Bean();
+        Arrays.fill(lastPerKey, -1);
+        try {
+            for (int i = 0; i < numExecutions; i++) {
+                final Integer index = i;
+                final int key = i % numKeys;
+                fifoRunner.execute(key, new FifoTask<Integer>() {
+                    public Integer runParallel() {
+                        if (index == 0) {
+                            try {
+                                Thread.sleep(500);
+                            } catch (InterruptedException ex) {
+                                throw new RuntimeException(ex);
+                            }
+                        }
+                        return index;
+                    }
+
+                    public void runSequential(Integer i) {
+                        synchronized (lastPerKey) {
+                            if (i != lastPerKey[key] + numKeys && !(lastPerKey[key] == -1 && i == key)) {
+                                assertionWrapper.setValue(new AssertionError(i));
+                            }
+                            lastPerKey[key] = i;
+                        }
+                        int count = sequentialCounter.incrementAndGet();
+                        if (i == 0) {
+                            completedAtSlowHead.setValue(count);
+                        }
+                    }
+
+                    public void onError(Throwable th) {
+                        assertionWrapper.setValue(new AssertionError(th));
+                    }
+                });
+            }
+        } finally {
+            fifoRunner.shutdown();
+            fifoRunner.awaitTermination(1, TimeUnit.DAYS);
+        }
+        if (assertionWrapper.getValue() != null) {
+            throw assertionWrapper.getValue();
+        }
+        assertEquals(numExecutions, sequentialCounter.get());
+        // other keys went on while key 0 was blocked by its head
+        assertTrue(completedAtSlowHead.getValue() > numKeys);
+    }
+
+    /**
+     * A key stalled beyond its partition window neither blocks the submitter
+     * nor the keys of the other partitions.
+     */
+    @Test(timeout = 20000)
+    public void testPartitionedStalledKey() throws Exception {
+        final int numExecutions = 200;
+        final PartitionedFifoTaskExecutor<Integer, Integer> fifoRunner = new PartitionedFifoTaskExecutor(2, 2, 2, 1000, null);
+        fifoRunner.setMetricsEnabled(true);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch otherKeyDone = new CountDownLatch(numExecutions / 2);
+        final List<Integer> stalledKey = Collections.synchronizedList(new ArrayList<Integer>());
+        try {
+            for (int i = 0; i < numExecutions; i++) {
+                final Integer index = i;
+                final int key = i % 2;
+                fifoRunner.execute(key, new FifoTask<Integer>() {
+                    public Integer runParallel() {
+                        if (index == 0) {
+                            try {
+                                release.await();
+                            } catch (InterruptedException ex) {
+                                throw new RuntimeException(ex);
+                            }
+                        }
+                        return index;
+                    }
+
+                    public void runSequential(Integer i) {
+                        if (key == 0) {
+                            stalledKey.add(i);
+                        } else {
+                            otherKeyDone.countDown();
+                        }
+                    }
+
+                    public void onError(Throwable th) {
+                    }
+                });
+            }
+            otherKeyDone.await();
+            assertTrue(stalledKey.isEmpty());
+            assertTrue(fifoRunner.getPending() > 0);
+        } finally {
+            release.countDown();
+            fifoRunner.shutdown();
+            fifoRunner.awaitTermination(1, TimeUnit.DAYS);
+        }
+        assertEquals(numExecutions / 2, stalledKey.size());
+        for (int i = 0; i < stalledKey.size(); i++) {
+            assertEquals(2 * i, stalledKey.get(i).intValue());
+        }
+        assertEquals(numExecutions, fifoRunner.getMetrics().getSubmitted());
+    }
+
+    /**
+     * Non-blocking submissions beyond the window, completing in order.
+     */
+    @Test
+    public void testSubmit() throws Exception {
+        final int numExecutions = 1000;
+        final FifoTaskExecutor<Integer> fifoRunner = new FifoTaskExecutor(4, 8, null);
+        final List<Integer> sequential = new ArrayList();
+        List<CompletableFuture<Integer>> futures = new ArrayList();
+        try {
+            for (int i = 0; i < numExecutions; i++) {
+                final Integer index = i;
+                futures.add(fifoRunner.submit(new FifoTask<Integer>() {
+                    public Integer runParallel() {
+                        if (index % 10 == 0) {
+                            throw new RuntimeException(String.valueOf(index));
+                        }
+                        return index;
+                    }
+
+                    public void runSequential(Integer i) {
+                        sequential.add(i);
+                    }
+
+                    public void onError(Throwable th) {
+                        sequential.add(Integer.valueOf(th.getMessage()));
+                    }
+                }));
+            }
+            for (int i = 0; i < numExecutions; i++) {
+                try {
+                    assertEquals(i, futures.get(i).get().intValue());
+                    assertTrue(i % 10 != 0);
+                } catch (ExecutionException ex) {
+                    assertEquals(String.valueOf(i), ex.getCause().getMessage());
+                }
+            }
+        } finally {
+            fifoRunner.shutdown();
+            fifoRunner.awaitTermination(1, TimeUnit.DAYS);
+        }
+        assertEquals(0, fifoRunner.getPending());
+        for (int i = 0; i < numExecutions; i++) {
+            assertEquals(i, sequential.get(i).intValue());
+        }
+    }
+
+    /**
+     * A submission rejected by the underlying executor is notified in order,
+     * after its pending predecessors.
+     */
+    @Test
+    public void testSubmitRejected() throws Exception {
+        final FifoTaskExecutor<Integer> fifoRunner = new FifoTaskExecutor(1, 4, null);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> sequential = Collections.synchronizedList(new ArrayList<String>());
+        CompletableFuture<Integer> first = fifoRunner.submit(new FifoTask<Integer>() {
+            public Integer runParallel() {
+                try {
+                    latch.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                return 0;
+            }
+
+            public void runSequential(Integer i) {
+                sequential.add("first");
+            }
+
+            public void onError(Throwable th) {
+                sequential.add("first error");
+            }
+        });
+        fifoRunner.shutdown();
+        CompletableFuture<Integer> second = fifoRunner.submit(new FifoTask<Integer>() {
+            public Integer runParallel() {
+                return 1;
+            }
+
+            public void runSequential(Integer i) {
+                sequential.add("second");
+            }
+
+            public void onError(Throwable th) {
+                sequential.add("second " + th.getClass().getSimpleName());
+            }
+        });
+        try {
+            assertFalse(second.isDone());
+            assertTrue(sequential.isEmpty());
+        } finally {
+            latch.countDown();
+        }
+        assertEquals(0, first.get().intValue());
+        try {
+            second.get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof RejectedExecutionException);
+        }
+        fifoRunner.awaitTermination(1, TimeUnit.DAYS);
+        assertEquals(Arrays.asList("first", "second RejectedExecutionException"), sequential);
+    }
+
+    /**
+     * Contiguous outcomes handed over in ordered batches, interleaved with
+     * error notifications.
+     */
+    @Test
+    public void testBatchConsumer() throws Exception {
+        final int numExecutions = 10000;
+        final int maxBatchSize = 64;
+        final FifoTaskExecutor<Integer> fifoRunner = new FifoTaskExecutor(4, 256, null);
+        final List<Integer> sequential = new ArrayList();
+        final Bean<AssertionError> assertionWrapper = new Bean();
+        final AtomicInteger batches = new AtomicInteger();
+        fifoRunner.setBatchConsumer(new BatchConsumer<Integer>() {
+            public void consume(List<Integer> batch) {
+                if (batch.isEmpty() || batch.size() > maxBatchSize) {
+                    assertionWrapper.setValue(new AssertionError(batch.size()));
+                }
+                batches.incrementAndGet();
+                sequential.addAll(batch);
+            }
+        }, maxBatchSize, 1, TimeUnit.MILLISECONDS);
+        try {
+            for (int i = 0; i < numExecutions; i++) {
+                final Integer index = i;
+                fifoRunner.execute(new FifoTask<Integer>() {
+                    public Integer runParallel() {
+                        if (index % 1000 == 999) {
+                            throw new RuntimeException(String.valueOf(index));
+                        }
+                        return index;
+                    }
+
+                    public void runSequential(Integer i) {
+                        assertionWrapper.setValue(new AssertionError("runSequential() called"));
+                    }
+
+                    public void onError(Throwable th) {
+                        sequential.add(Integer.valueOf(th.getMessage()));
+                    }
+                });
+            }
+        } finally {
+            fifoRunner.shutdown();
+            fifoRunner.awaitTermination(1, TimeUnit.DAYS);
+        }
+        if (assertionWrapper.getValue() != null) {
+            throw assertionWrapper.getValue();
+        }
+        assertEquals(numExecutions, sequential.size());
+        for (int i = 0; i < numExecutions; i++) {
+            assertEquals(i, sequential.get(i).intValue());
+        }
+        assertTrue(batches.get() < numExecutions);
+    }
+
+    /**
+     * A lingering batch is handed over at its deadline without further
+     * completions, and right away on shutdown.
+     */
+    @Test
+    public void testBatchLinger() throws Exception {
+        final List<Integer> sequential = Collections.synchronizedList(new ArrayList<Integer>());
+        BatchConsumer<Integer> consumer = new BatchConsumer<Integer>() {
+            public void consume(List<Integer> batch) {
+                sequential.addAll(batch);
+            }
+        };
+        FifoTaskExecutor<Integer> fifoRunner = new FifoTaskExecutor(2);
+        fifoRunner.setBatchConsumer(consumer, 100, 50, TimeUnit.MILLISECONDS);
+        try {
+            for (int i = 0; i < 5; i++) {
+                fifoRunner.execute(new IntegerTask(i));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sequential.size() < 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4), new ArrayList<Integer>(sequential));
+        } finally {
+            fifoRunner.shutdown();
+            fifoRunner.awaitTermination(1, TimeUnit.DAYS);
+        }
+
+        sequential.clear();
+        fifoRunner = new FifoTaskExecutor(2);
+        fifoRunner.setBatchConsumer(consumer, 100, 1, TimeUnit.DAYS);
+        try {
+            for (int i = 0; i < 5; i++) {
+                fifoRunner.execute(new IntegerTask(i));
+            }
+        } finally {
+            fifoRunner.shutdown();
+            fifoRunner.awaitTermination(1, TimeUnit.DAYS);
+        }
+        assertEquals(5, sequential.size());
+    }
+
+    private static final class IntegerTask implements FifoTask<Integer> {
+
+        private final int index;
+
+        IntegerTask(int index) {
+            this.index = index;
+        }
+
+        public Integer runParallel() {
+            return index;
+        }
+
+        public void runSequential(Integer i) {
+        }
+
+        public void onError(Throwable th) {
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final int numExecutions = 1000;
+        final FifoTaskExecutor<Integer> fifoRunner = new FifoTaskExecutor(4);
+        assertNull(fifoRunner.getMetrics());
+        fifoRunner.setMetricsEnabled(true);
+        FifoTaskExecutorMetrics metrics = fifoRunner.getMetrics();
+        metrics.registerMBean("testMetrics");
+        try {
+            for (int i = 0; i < numExecutions; i++) {
+                final Integer index = i;
+                fifoRunner.execute(new FifoTask<Integer>() {
+                    public Integer runParallel() {
+                        if (index % 2 == 0) {
+                            throw new RuntimeException();
+                        }
+                        return index;
+                    }
+
+                    public void runSequential(Integer i) {
+                    }
+
+                    public void onError(Throwable th) {
+                    }
+                });
+            }
+            fifoRunner.shutdown();
+            fifoRunner.awaitTermination(1, TimeUnit.DAYS);
+            assertEquals(numExecutions, metrics.getSubmitted());
+            assertEquals(numExecutions / 2, metrics.getErrors());
+            assertEquals(0, metrics.getBufferedResults());
+            assertEquals(numExecutions, metrics.getParallelTime().getCount());
+            assertEquals(numExecutions, metrics.getSequentialTime().getCount());
+            assertEquals(numExecutions, metrics.getPredecessorWaitTime().getCount());
+            assertTrue(metrics.getBufferDepth().getMax() <= fifoRunner.getMaxInFlight());
+            Object submitted = ManagementFactory.getPlatformMBeanServer().getAttribute(
+                    new ObjectName("org.brutusin.commons.concurrent:type=FifoTaskExecutor,name=\"testMetrics\""), "Submitted");
+            assertEquals(Long.valueOf(numExecutions), submitted);
+        } finally {
+            metrics.unregisterMBean();
+        }
+
+        // results processed right away are not buffered
+        final FifoTaskExecutor<Integer> serial = new FifoTaskExecutor(1);
+        serial.setMetricsEnabled(true);
+        for (int i = 0; i < 100; i++) {
+            serial.execute(new IntegerTask(i));
+        }
+        serial.shutdown();
+        serial.awaitTermination(1, TimeUnit.DAYS);
+        assertEquals(100, serial.getMetrics().getBufferDepth().getCount());
+        assertEquals(0, serial.getMetrics().getBufferDepth().getMax());
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.concurrent;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class OrderedParallelMapperTest {
+
+    @Test
+    public void testMapUnboundedSource() {
+        final AtomicInteger pulled = new AtomicInteger();
+        Iterator<Integer> source = new Iterator<Integer>() {
+            public boolean hasNext() {
+                return true;
+            }
+
+            public Integer next() {
+                return pulled.getAndIncrement();
+            }
+        };
+        CloseableIterator<String> it = OrderedParallelMapper.map(source, new Function<Integer, String>() {
+            public String apply(Integer i) {
+                return String.valueOf(i * 2);
+            }
+        }, 4, 16);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(String.valueOf(i * 2), it.next());
+            }
+        } finally {
+            it.close();
+        }
+        assertFalse(it.hasNext());
+        // prefetch is bounded
+        assertTrue(pulled.get() <= 1000 + 16);
+    }
+
+    @Test
+    public void testStream() {
+        Stream<Integer> stream = OrderedParallelMapper.stream(IntStream.range(0, 10000).boxed().spliterator(), new Function<Integer, Integer>() {
+            public Integer apply(Integer i) {
+                return i + 1;
+            }
+        });
+        try {
+            final AtomicInteger expected = new AtomicInteger(1);
+            Iterator<Integer> it = stream.iterator();
+            while (it.hasNext()) {
+                assertEquals(expected.getAndIncrement(), it.next().intValue());
+            }
+            assertEquals(10001, expected.get());
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test(expected = CompletionException.class)
+    public void testMapperException() {
+        CloseableIterator<Integer> it = OrderedParallelMapper.map(IntStream.range(0, 100).boxed().iterator(), new Function<Integer, Integer>() {
+            public Integer apply(Integer i) {
+                if (i == 50) {
+                    throw new IllegalStateException();
+                }
+                return i;
+            }
+        });
+        try {
+            while (it.hasNext()) {
+                it.next();
+            }
+        } finally {
+            it.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DelimitedLineReaderTest {
+
+    private static List<List<String>> split(String contents, char delimiter, char quote) throws Exception {
+        final List<List<String>> ret = new ArrayList<List<String>>();
+        new DelimitedLineReader(new ByteArrayInputStream(contents.getBytes("UTF-8")), "UTF-8", delimiter, quote) {
+            @Override
+            protected void processFields(Fields fields) throws Exception {
+                List<String> line = new ArrayList<String>();
+                for (int i = 0; i < fields.size(); i++) {
+                    line.add(fields.getString(i));
+                }
+                ret.add(line);
+            }
+
+            @Override
+            protected void onExceptionFound(Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        }.run();
+        return ret;
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        assertEquals(Arrays.asList(
+                Arrays.asList("a", "", "b\u00f1", ""),
+                Arrays.asList(""),
+                Arrays.asList("\"q\"", "x")),
+                split("a\t\tb\u00f1\t\n\n\"q\"\tx", '\t', DelimitedLineReader.NO_QUOTE));
+        assertEquals(Arrays.asList(
+                Arrays.asList("a,b", "say \"hi\"", "", "c"),
+                Arrays.asList("", "unterminated, quote")),
+                split("\"a,b\",\"say \"\"hi\"\"\",\"\",c\n,\"unterminated, quote", ',', '"'));
+
+        Random random = new Random(6);
+        String[] tokens = {"a", "bc", "\u00f1", ",", ",,", "0123456789", "\t", "\u0001", "\u00ac"};
+        StringBuilder sb = new StringBuilder();
+        List<List<String>> expected = new ArrayList<List<String>>();
+        for (int i = 0; i < 500; i++) {
+            StringBuilder line = new StringBuilder();
+            int n = random.nextInt(30);
+            for (int j = 0; j < n; j++) {
+                line.append(tokens[random.nextInt(tokens.length)]);
+            }
+            sb.append(line).append('\n');
+            expected.add(Arrays.asList(line.toString().split(",", -1)));
+        }
+        assertEquals(expected, split(sb.toString(), ',', DelimitedLineReader.NO_QUOTE));
+        assertEquals(expected, split(sb.toString(), ',', '"'));
+    }
+
+    /**
+     * In GBK, the trail byte of U+4E85 is '|'.
+     */
+    @Test
+    public void testMultiByteCharsetRejected() throws Exception {
+        for (String charset : new String[]{"GBK", "Shift_JIS"}) {
+            try {
+                new DelimitedLineReader(new ByteArrayInputStream("\u4e85|x".getBytes(charset)), charset, '|', DelimitedLineReader.NO_QUOTE) {
+                    @Override
+                    protected void processFields(Fields fields) {
+                    }
+
+                    @Override
+                    protected void onExceptionFound(Exception ex) {
+                    }
+                };
+                fail(charset);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testNumbers() throws Exception {
+        final Random random = new Random(5);
+        StringBuilder sb = new StringBuilder();
+        final List<String> values = new ArrayList<String>();
+        String[] fixed = {"0", "-0", "1.", ".5", "0.05", "1e10", "-2.5E-3", "123456789012345678", "1.7976931348623157E308", "4.9E-324", "NaN", "-Infinity", "0.1", "3.14159265358979323846", "-9223372036854775808", "9223372036854775808"};
+        values.addAll(Arrays.asList(fixed));
+        for (int i = 0; i < 2000; i++) {
+            values.add(Double.toString(random.nextDouble() * Math.pow(10, random.nextInt(40) - 20)));
+            values.add(String.valueOf(random.nextLong()));
+            values.add(String.format(Locale.ROOT, "%.4f", random.nextDouble() * 1000));
+        }
+        for (String value : values) {
+            sb.append(value).append(',').append(value.length()).append('\n');
+        }
+        final List<String> errors = new ArrayList<String>();
+        final int[] count = new int[1];
+        new DelimitedLineReader(new ByteArrayInputStream(sb.toString().getBytes("UTF-8")), "UTF-8", ',', '"') {
+            @Override
+            protected void processFields(Fields fields) throws Exception {
+                String value = values.get(count[0]++);
+                assertEquals(2, fields.size());
+                assertTrue(fields.equalsAscii(0, value));
+                assertEquals(value.length(), fields.getInt(1));
+                if (Double.doubleToLongBits(Double.parseDouble(value)) != Double.doubleToLongBits(fields.getDouble(0))) {
+                    errors.add(value);
+                }
+                try {
+                    long expected = Long.parseLong(value);
+                    assertEquals(expected, fields.getLong(0));
+                } catch (NumberFormatException ex) {
+                    try {
+                        fields.getLong(0);
+                        fail(value);
+                    } catch (NumberFormatException ex2) {
+                    }
+                }
+            }
+
+            @Override
+            protected void onExceptionFound(Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        }.run();
+        assertEquals(values.size(), count[0]);
+        assertEquals(new ArrayList<String>(), errors);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.brutusin.commons.utils.Miscellaneous;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IndexedLineFileTest {
+
+    private static File createTempFile(String suffix) throws IOException {
+        File f = File.createTempFile("IndexedLineFileTest", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    @Test
+    public void testGetLines() throws Exception {
+        Random random = new Random(2);
+        String[] tokens = {"a", "bb", "\u00f1", "\n", "\r", "\r\n", "\n\n", "0123456789abcdef"};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append(tokens[random.nextInt(tokens.length)]);
+        }
+        String contents = sb.toString();
+        final List<String> expected = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new StringReader(contents));
+        String line;
+        while ((line = br.readLine()) != null) {
+            expected.add(line);
+        }
+        final File f = createTempFile(".txt");
+        Miscellaneous.writeStringToFile(f, contents, "UTF-8");
+
+        File indexFile = createTempFile(".idx");
+        LineReader lr = new LineReader(f) {
+            @Override
+            protected void processLine(LineView line) throws Exception {
+            }
+
+            @Override
+            protected void processLine(String line) throws Exception {
+            }
+
+            @Override
+            protected void onExceptionFound(Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        };
+        lr.setIndexFile(indexFile, 7);
+        lr.run();
+        LineIndex index = LineIndex.read(indexFile);
+        assertEquals(expected.size(), index.getLineCount());
+        assertEquals(7, index.getInterval());
+
+        for (LineIndex idx : new LineIndex[]{index, LineIndex.build(f, "UTF-8", 1), LineIndex.build(f, "UTF-8", 1000000)}) {
+            IndexedLineFile ilf = new IndexedLineFile(f, idx, "UTF-8");
+            try {
+                assertEquals(expected.size(), ilf.getLineCount());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i), ilf.getLine(i + 1));
+                }
+                assertEquals(expected.subList(10, 30), ilf.getLines(11, 20));
+                assertEquals(expected.subList(expected.size() - 2, expected.size()), ilf.getLines(expected.size() - 1, 20));
+
+                final long from = expected.size() / 2;
+                final List<String> tail = new ArrayList<String>();
+                new LineReader(f, "UTF-8", ilf.getOffset(from), from - 1) {
+                    @Override
+                    protected void processLine(String line) throws Exception {
+                        assertEquals(from + tail.size(), getLineNumber());
+                        tail.add(line);
+                    }
+
+                    @Override
+                    protected void onExceptionFound(Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }.run();
+                assertEquals(expected.subList((int) from - 1, expected.size()), tail);
+                try {
+                    ilf.getLine(expected.size() + 1);
+                    fail();
+                } catch (IndexOutOfBoundsException ex) {
+                }
+            } finally {
+                ilf.close();
+            }
+        }
+
+        Miscellaneous.writeStringToFile(f, contents + "x", "UTF-8");
+        try {
+            new IndexedLineFile(f, indexFile, "UTF-8");
+            fail();
+        } catch (IOException ex) {
+        }
+    }
+}
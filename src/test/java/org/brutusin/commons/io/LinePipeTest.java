@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LinePipeTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Sink that counts the flushes received.
+     */
+    private static final class CountingOutputStream extends ByteArrayOutputStream {
+
+        private volatile int flushes;
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    @Test
+    public void testPipe() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            String line = "line \u00f1 " + i;
+            sb.append(line).append(i % 2 == 0 ? "\n" : "\r\n");
+            expected.append(line).append("\n");
+        }
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            longLine.append("\u20ac");
+        }
+        sb.append(longLine);
+        expected.append(longLine).append("\n");
+        CountingOutputStream os1 = new CountingOutputStream();
+        ByteArrayOutputStream os2 = new ByteArrayOutputStream();
+        LinePipe pipe = new LinePipe(UTF8, os1, null, os2);
+        pipe.setFlushBytes(1024);
+        pipe.setSyncWhenIdle(false);
+        assertEquals(1001, pipe.pipe(new BufferedReader(new StringReader(sb.toString()))));
+        assertEquals(expected.toString(), os1.toString("UTF-8"));
+        assertEquals(expected.toString(), os2.toString("UTF-8"));
+        assertTrue(os1.flushes > 1);
+        assertTrue(os1.flushes < 100);
+    }
+
+    /**
+     * Line and separator are encoded at once, with a single byte order mark.
+     */
+    @Test
+    public void testUtf16() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        LinePipe pipe = new LinePipe(Charset.forName("UTF-16"), os);
+        pipe.writeLine("ab");
+        pipe.writeLine("\ud83d");
+        pipe.close();
+        byte[] expected = {(byte) 0xfe, (byte) 0xff, 0, 'a', 0, 'b', 0, '\n',
+            (byte) 0xfe, (byte) 0xff, (byte) 0xff, (byte) 0xfd, 0, '\n'};
+        assertArrayEquals(expected, os.toByteArray());
+    }
+
+    @Test
+    public void testFlushInterval() throws Exception {
+        CountingOutputStream os = new CountingOutputStream();
+        LinePipe pipe = new LinePipe(UTF8, os);
+        pipe.setFlushInterval(200, TimeUnit.MILLISECONDS);
+        pipe.writeLine("a");
+        pipe.writeLine("b");
+        assertEquals(0, os.size());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (os.size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("a\nb\n", os.toString("UTF-8"));
+        assertEquals(1, os.flushes);
+        pipe.writeLine("c");
+        pipe.close();
+        assertEquals("a\nb\nc\n", os.toString("UTF-8"));
+        assertEquals(3, pipe.getLineCount());
+    }
+
+    /**
+     * Sink that fails the first write.
+     */
+    private static final class FailingOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private boolean failed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!failed) {
+                failed = true;
+                throw new IOException("Sink failure");
+            }
+            bytes.write(b, off, len);
+        }
+    }
+
+    @Test
+    public void testFailingSink() throws Exception {
+        ByteArrayOutputStream os1 = new ByteArrayOutputStream();
+        FailingOutputStream os2 = new FailingOutputStream();
+        ByteArrayOutputStream os3 = new ByteArrayOutputStream();
+        LinePipe pipe = new LinePipe(UTF8, os1, os2, os3);
+        pipe.writeLine("a");
+        try {
+            pipe.sync();
+            fail();
+        } catch (IOException ex) {
+            // expected
+        }
+        assertEquals("a\n", os1.toString("UTF-8"));
+        assertEquals("", os3.toString("UTF-8"));
+        pipe.writeLine("b");
+        pipe.close();
+        for (ByteArrayOutputStream os : new ByteArrayOutputStream[]{os1, os2.bytes, os3}) {
+            assertEquals("a\nb\n", os.toString("UTF-8"));
+        }
+    }
+}
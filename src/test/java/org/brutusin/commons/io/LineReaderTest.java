@@ -16,7 +16,31 @@
 package org.brutusin.commons.io;
 
 import org.brutusin.commons.Bean;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.brutusin.commons.concurrent.FifoTask;
 import org.brutusin.commons.utils.Miscellaneous;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -170,4 +194,692 @@ public class LineReaderTest {
         assertEquals("123", sb.toString());
     }
 
+    private static File createFile(String contents, String charset) throws IOException {
+        File f = File.createTempFile("LineReaderTest", ".txt");
+        f.deleteOnExit();
+        Miscellaneous.writeStringToFile(f, contents, charset);
+        return f;
+    }
+
+    private static List<String> readLines(String contents) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new StringReader(contents));
+        String line;
+        while ((line = br.readLine()) != null) {
+            ret.add(line);
+        }
+        return ret;
+    }
+
+    @Test
+    public void testRunFile() throws Exception {
+        for (String charset : new String[]{"UTF-8", "UTF-16"}) {
+            final StringBuilder sb = new StringBuilder();
+            final int totalBytes = CONTENTS.getBytes(charset).length;
+            LineReader lr = new LineReader(createFile(CONTENTS, charset), charset) {
+                @Override
+                protected void processLine(String line) throws Exception {
+                    sb.append(getLineNumber()).append(isLastLine()).append(line);
+                    assertTrue(totalBytes >= getBytesBuffered());
+                }
+
+                @Override
+                protected void onExceptionFound(Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+
+                @Override
+                protected void onFinish() {
+                    assertEquals(totalBytes, getBytesBuffered());
+                }
+            };
+            lr.run();
+            assertEquals("1false11\t122false21\t223true31\t32", sb.toString());
+        }
+    }
+
+    /**
+     * Byte-level scanning must split lines as BufferedReader does, also when
+     * lines and terminators span mapped windows.
+     */
+    @Test
+    public void testMappedLineScanner() throws Exception {
+        Random random = new Random(0);
+        String[] tokens = {"a", "bb", "ñ", "\u20ac", "\n", "\r", "\r\n", "\n\n", "0123456789abcdef"};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append(tokens[random.nextInt(tokens.length)]);
+        }
+        String contents = sb.toString();
+        List<String> expected = readLines(contents);
+        File f = createFile(contents, "UTF-8");
+        for (int windowSize : new int[]{1, 7, 64, 1000, MappedLineScanner.DEFAULT_WINDOW_SIZE}) {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                MappedLineScanner scanner = new MappedLineScanner(raf.getChannel(), 0, raf.length(), windowSize);
+                List<String> actual = new ArrayList<String>();
+                while (scanner.next()) {
+                    byte[] bytes = new byte[scanner.lineEnd - scanner.lineStart];
+                    for (int i = 0; i < bytes.length; i++) {
+                        bytes[i] = scanner.buffer.get(scanner.lineStart + i);
+                    }
+                    actual.add(new String(bytes, "UTF-8"));
+                    assertEquals(actual.size() == expected.size(), scanner.isLast());
+                }
+                assertEquals(expected, actual);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Stream scanning must split lines as BufferedReader does, whatever the
+     * buffer size and the amount of bytes returned by each read.
+     */
+    @Test
+    public void testStreamLineScanner() throws Exception {
+        Random random = new Random(3);
+        String[] tokens = {"a", "bb", "\u00f1", "\u20ac", "\n", "\r", "\r\n", "\n\n", "0123456789abcdef"};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append(tokens[random.nextInt(tokens.length)]);
+        }
+        String contents = sb.toString();
+        List<String> expected = readLines(contents);
+        final byte[] bytes = contents.getBytes("UTF-8");
+        for (int bufferSize : new int[]{1, 7, 64, StreamLineScanner.DEFAULT_BUFFER_SIZE}) {
+            for (final int maxRead : new int[]{1, 3, Integer.MAX_VALUE}) {
+                InputStream is = new ByteArrayInputStream(bytes) {
+                    @Override
+                    public synchronized int read(byte[] b, int off, int len) {
+                        return super.read(b, off, Math.min(len, maxRead));
+                    }
+                };
+                StreamLineScanner scanner = new StreamLineScanner(is, bufferSize);
+                List<String> actual = new ArrayList<String>();
+                long previousEnd = 0;
+                while (scanner.next()) {
+                    boolean last = scanner.isLast();
+                    actual.add(new String(scanner.buffer.array(), scanner.lineStart, scanner.lineEnd - scanner.lineStart, "UTF-8"));
+                    assertEquals(actual.size() == expected.size(), last);
+                    assertEquals(previousEnd, scanner.startOffset);
+                    previousEnd = scanner.endOffset;
+                }
+                assertEquals(expected, actual);
+                assertEquals(bytes.length, previousEnd);
+                assertEquals(bytes.length, scanner.getBytesRead());
+            }
+        }
+    }
+
+    @Test
+    public void testChunkedFileProcessor() throws Exception {
+        Random random = new Random(1);
+        String[] tokens = {"a", "bb", "\u00f1", "\n", "\r", "\r\n", "\n\n", "0123456789abcdef"};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append(tokens[random.nextInt(tokens.length)]);
+        }
+        String contents = sb.toString();
+        final List<String> expected = readLines(contents);
+        File f = createFile(contents, "UTF-8");
+        for (long chunkSize : new long[]{1, 7, 100, 1000000}) {
+            List<FileChunk> chunks = ChunkedFileProcessor.split(f, "UTF-8", chunkSize, true);
+            final ConcurrentHashMap<Long, String> lines = new ConcurrentHashMap<Long, String>();
+            ChunkedFileProcessor.run(chunks, 4, new LineReaderFactory() {
+                public LineReader newLineReader(FileChunk chunk) {
+                    return new LineReader(chunk, "UTF-8") {
+                        @Override
+                        protected void processLine(String line) throws Exception {
+                            assertNull(lines.put(getLineNumber(), line));
+                        }
+
+                        @Override
+                        protected void onExceptionFound(Exception ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    };
+                }
+            });
+            assertEquals(expected.size(), lines.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i), lines.get(i + 1L));
+            }
+
+            final List<String> merged = new ArrayList<String>();
+            ChunkedFileProcessor.runOrdered(ChunkedFileProcessor.split(f, "UTF-8", chunkSize, false), 4, new ChunkTaskFactory<List<String>>() {
+                public FifoTask<List<String>> newTask(final FileChunk chunk) {
+                    return new FifoTask<List<String>>() {
+                        public List<String> runParallel() {
+                            final List<String> ret = new ArrayList<String>();
+                            try {
+                                new LineReader(chunk, "UTF-8") {
+                                    @Override
+                                    protected void processLine(String line) throws Exception {
+                                        assertEquals(ret.size() + 1, getLineNumber());
+                                        ret.add(line);
+                                    }
+
+                                    @Override
+                                    protected void onExceptionFound(Exception ex) {
+                                        throw new RuntimeException(ex);
+                                    }
+                                }.run();
+                            } catch (Exception ex) {
+                                throw new RuntimeException(ex);
+                            }
+                            return ret;
+                        }
+
+                        public void runSequential(List<String> e) {
+                            merged.addAll(e);
+                        }
+
+                        public void onError(Throwable th) {
+                            merged.add(null);
+                        }
+                    };
+                }
+            });
+            assertEquals(expected, merged);
+        }
+
+        // a failing chunk does not stop the others
+        List<FileChunk> chunks = ChunkedFileProcessor.split(f, "UTF-8", 100, false);
+        final AtomicInteger finished = new AtomicInteger();
+        try {
+            ChunkedFileProcessor.run(chunks, 4, new LineReaderFactory() {
+                public LineReader newLineReader(final FileChunk chunk) {
+                    return new LineReader(chunk, "UTF-8") {
+                        @Override
+                        protected void processLine(String line) throws Exception {
+                            if (chunk.getIndex() == 0) {
+                                throw new IllegalStateException();
+                            }
+                        }
+
+                        @Override
+                        protected void onExceptionFound(Exception ex) {
+                            throw (RuntimeException) ex;
+                        }
+
+                        @Override
+                        protected void onFinish() {
+                            finished.incrementAndGet();
+                        }
+                    };
+                }
+            });
+            fail();
+        } catch (IllegalStateException ex) {
+            assertEquals(chunks.size(), finished.get());
+        }
+    }
+
+    @Test
+    public void testProcessLineView() throws Exception {
+        String contents = "a\u00f1b\n\nfoo;bar\r\nlast\u20ac";
+        List<String> expected = readLines(contents);
+        File f = createFile(contents, "UTF-8");
+        for (final boolean file : new boolean[]{true, false}) {
+            final List<String> lines = new ArrayList<String>();
+            final StringBuilder sb = new StringBuilder();
+            LineReader lr;
+            if (file) {
+                lr = new ViewLineReader(f, lines, sb);
+            } else {
+                lr = new ViewLineReader(Miscellaneous.toInputStream(contents, Charset.forName("UTF-8")), lines, sb);
+            }
+            lr.run();
+            assertEquals(expected, lines);
+            assertEquals("3", sb.toString());
+        }
+    }
+
+    private static class ViewLineReader extends LineReader {
+
+        private final List<String> lines;
+        private final StringBuilder sb;
+
+        public ViewLineReader(File file, List<String> lines, StringBuilder sb) {
+            super(file);
+            this.lines = lines;
+            this.sb = sb;
+        }
+
+        public ViewLineReader(InputStream is, List<String> lines, StringBuilder sb) {
+            super(is);
+            this.lines = lines;
+            this.sb = sb;
+        }
+
+        @Override
+        protected void processLine(LineView line) throws Exception {
+            StringBuilder chars = new StringBuilder();
+            for (int i = 0; i < line.length(); i++) {
+                chars.append(line.charAt(i));
+            }
+            ByteBuffer bb = line.bytes();
+            byte[] bytes = new byte[bb.remaining()];
+            bb.get(bytes);
+            assertEquals(chars.toString(), new String(bytes, "UTF-8"));
+            assertEquals(chars.toString(), line.toString());
+            assertEquals(chars.toString(), getLine());
+            if (line.startsWith("foo")) {
+                sb.append(line.indexOf(';', 0));
+            }
+            lines.add(chars.toString());
+        }
+
+        @Override
+        protected void processLine(String line) throws Exception {
+            fail("Lines must be delivered as views");
+        }
+
+        @Override
+        protected void onExceptionFound(Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Test
+    public void testProcessLines() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("line").append(i).append('\n');
+        }
+        String contents = sb.toString();
+        List<String> expected = readLines(contents);
+        File f = createFile(contents, "UTF-8");
+        for (boolean file : new boolean[]{true, false}) {
+            for (long maxBytes : new long[]{Long.MAX_VALUE, 12}) {
+                BatchLineReader lr;
+                if (file) {
+                    lr = new BatchLineReader(f, expected.size());
+                } else {
+                    lr = new BatchLineReader(Miscellaneous.toInputStream(contents, Charset.forName("UTF-8")), expected.size());
+                }
+                lr.setBatchSize(7, maxBytes);
+                lr.run();
+                assertEquals(expected, lr.lines);
+                List<String> offsets = new ArrayList<String>();
+                int line = 0;
+                long end = 0;
+                for (List<String> batch : lr.batches) {
+                    for (String s : batch) {
+                        end += s.length() + 1;
+                    }
+                    line += batch.size();
+                    offsets.add(end - expected.get(line - 1).length() - 1 + "-" + end);
+                }
+                assertEquals(offsets, lr.offsets);
+                for (List<String> batch : lr.batches) {
+                    assertTrue(batch.size() <= 7);
+                    long bytes = 0;
+                    for (int i = 0; i < batch.size() - 1; i++) {
+                        bytes += batch.get(i).length();
+                    }
+                    assertTrue(bytes < maxBytes);
+                }
+                assertEquals(maxBytes == Long.MAX_VALUE ? 7 : 3, lr.batches.get(0).size());
+            }
+        }
+    }
+
+    /**
+     * Subclasses only overriding the view callback must also work in batch
+     * mode, with line accessors and error handling as in the non-batch mode.
+     */
+    @Test
+    public void testProcessLinesView() throws Exception {
+        String contents = "a\u00f1b\n\nfoo;bar\r\nlast\u20ac";
+        List<String> lines = readLines(contents);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).startsWith("foo")) {
+                expected.add("error:" + (i + 1));
+            } else {
+                expected.add((i + 1) + ":" + lines.get(i) + ":" + (i == lines.size() - 1));
+            }
+        }
+        File f = createFile(contents, "UTF-8");
+        for (boolean file : new boolean[]{true, false}) {
+            ViewBatchLineReader lr;
+            if (file) {
+                lr = new ViewBatchLineReader(f);
+            } else {
+                lr = new ViewBatchLineReader(Miscellaneous.toInputStream(contents, Charset.forName("UTF-8")));
+            }
+            lr.setBatchSize(3, Long.MAX_VALUE);
+            lr.run();
+            assertEquals(expected, lr.lines);
+            ViewBatchLineReader single = new ViewBatchLineReader(f);
+            single.run();
+            assertEquals(expected, single.lines);
+            assertEquals(single.offsets, lr.offsets);
+        }
+    }
+
+    private static class ViewBatchLineReader extends LineReader {
+
+        private final List<String> lines = new ArrayList<String>();
+        private final List<String> offsets = new ArrayList<String>();
+
+        public ViewBatchLineReader(File file) {
+            super(file);
+        }
+
+        public ViewBatchLineReader(InputStream is) {
+            super(is);
+        }
+
+        @Override
+        protected void processLine(LineView line) throws Exception {
+            assertEquals(line.toString(), getLine());
+            offsets.add(getLineStartOffset() + "-" + getLineEndOffset());
+            if (line.startsWith("foo")) {
+                throw new IllegalStateException();
+            }
+            lines.add(getLineNumber() + ":" + line + ":" + isLastLine());
+        }
+
+        @Override
+        protected void processLine(String line) throws Exception {
+            fail("Lines must be delivered as views");
+        }
+
+        @Override
+        protected void onExceptionFound(Exception ex) {
+            if (!(ex instanceof IllegalStateException)) {
+                throw new RuntimeException(ex);
+            }
+            lines.add("error:" + getLineNumber());
+        }
+    }
+
+    private static class BatchLineReader extends LineReader {
+
+        private final int total;
+        private final List<String> lines = new ArrayList<String>();
+        private final List<List<String>> batches = new ArrayList<List<String>>();
+        private final List<String> offsets = new ArrayList<String>();
+
+        public BatchLineReader(File file, int total) {
+            super(file);
+            this.total = total;
+        }
+
+        public BatchLineReader(InputStream is, int total) {
+            super(is);
+            this.total = total;
+        }
+
+        @Override
+        protected void processLines(List<String> batch) throws Exception {
+            lines.addAll(batch);
+            batches.add(batch);
+            assertEquals(lines.size(), getLineNumber());
+            assertEquals(batch.get(batch.size() - 1), getLine());
+            assertEquals(lines.size() == total, isLastLine());
+            offsets.add(getLineStartOffset() + "-" + getLineEndOffset());
+        }
+
+        @Override
+        protected void processLine(String line) throws Exception {
+            fail("Lines must be delivered in blocks");
+        }
+
+        @Override
+        protected void onExceptionFound(Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Test
+    public void testOnFinishWhenOpenFails() throws Exception {
+        File missing = new File(createFile("", "UTF-8").getPath() + ".missing");
+        final AtomicInteger finished = new AtomicInteger();
+        for (boolean follow : new boolean[]{false, true}) {
+            LineReader lr = new LineReader(missing) {
+                @Override
+                protected void processLine(String line) throws Exception {
+                }
+
+                @Override
+                protected void onFinish() {
+                    finished.incrementAndGet();
+                }
+
+                @Override
+                protected void onExceptionFound(Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            };
+            if (follow) {
+                lr.setFollow(50, TimeUnit.MILLISECONDS);
+            }
+            try {
+                lr.run();
+                fail();
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+        assertEquals(2, finished.get());
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        String contents = "first\r\n\u00f1\n\nfourth\rfifth\r\nsixth";
+        final List<String> expected = readLines(contents);
+        final byte[] bytes = contents.getBytes("UTF-8");
+        final File f = createFile(contents, "UTF-8");
+        for (int stopAt = 1; stopAt <= expected.size(); stopAt++) {
+            final int stop = stopAt;
+            final long[] checkpoint = new long[2];
+            final List<String> lines = new ArrayList<String>();
+            new LineReader(f) {
+                @Override
+                protected void processLine(String line) throws Exception {
+                    lines.add(line);
+                    assertEquals(line, new String(bytes, (int) getLineStartOffset(), line.getBytes("UTF-8").length, "UTF-8"));
+                    if (getLineNumber() == stop) {
+                        checkpoint[0] = getLineEndOffset();
+                        checkpoint[1] = getLineNumber();
+                        exit();
+                    }
+                }
+
+                @Override
+                protected void onExceptionFound(Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }.run();
+            new LineReader(f, "UTF-8", checkpoint[0], checkpoint[1]) {
+                private long previousEnd = checkpoint[0];
+
+                @Override
+                protected void processLine(String line) throws Exception {
+                    assertEquals(previousEnd, getLineStartOffset());
+                    previousEnd = getLineEndOffset();
+                    lines.add(line);
+                    assertEquals(lines.size(), getLineNumber());
+                }
+
+                @Override
+                protected void onExceptionFound(Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }.run();
+            assertEquals(expected, lines);
+        }
+    }
+
+    @Test
+    public void testFollow() throws Exception {
+        final File f = createFile("l1\nl2\n", "UTF-8");
+        final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+        final LineReader lr = new LineReader(f) {
+            @Override
+            protected void processLine(String line) throws Exception {
+                queue.add(getLineNumber() + ":" + line);
+            }
+
+            @Override
+            protected void onRestart() {
+                queue.add("restart");
+            }
+
+            @Override
+            protected void onExceptionFound(Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        };
+        lr.setFollow(50, TimeUnit.MILLISECONDS);
+        final Exception[] error = new Exception[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    lr.run();
+                } catch (Exception ex) {
+                    error[0] = ex;
+                }
+            }
+        };
+        t.start();
+        assertEquals("1:l1", queue.poll(5, TimeUnit.SECONDS));
+        assertEquals("2:l2", queue.poll(5, TimeUnit.SECONDS));
+        append(f, "l3\nl4");
+        assertEquals("3:l3", queue.poll(5, TimeUnit.SECONDS));
+        assertNull(queue.poll(300, TimeUnit.MILLISECONDS));
+        append(f, "\r");
+        assertNull(queue.poll(300, TimeUnit.MILLISECONDS));
+        append(f, "\nl5\n");
+        assertEquals("4:l4", queue.poll(5, TimeUnit.SECONDS));
+        assertEquals("5:l5", queue.poll(5, TimeUnit.SECONDS));
+        Miscellaneous.writeStringToFile(f, "n1\n", "UTF-8");
+        assertEquals("restart", queue.poll(5, TimeUnit.SECONDS));
+        assertEquals("1:n1", queue.poll(5, TimeUnit.SECONDS));
+        append(f, "n2");
+        File rotated = new File(f.getPath() + ".1");
+        rotated.deleteOnExit();
+        assertTrue(f.renameTo(rotated));
+        Miscellaneous.writeStringToFile(f, "r1\n", "UTF-8");
+        assertEquals("2:n2", queue.poll(5, TimeUnit.SECONDS));
+        assertEquals("restart", queue.poll(5, TimeUnit.SECONDS));
+        assertEquals("1:r1", queue.poll(5, TimeUnit.SECONDS));
+        // rewritten past the read offset, as if truncated and written again
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.write("x1\nx2\n".getBytes("UTF-8"));
+        } finally {
+            raf.close();
+        }
+        assertEquals("restart", queue.poll(5, TimeUnit.SECONDS));
+        assertEquals("1:x1", queue.poll(5, TimeUnit.SECONDS));
+        assertEquals("2:x2", queue.poll(5, TimeUnit.SECONDS));
+        lr.exit();
+        t.join(5000);
+        assertFalse(t.isAlive());
+        assertNull(error[0]);
+    }
+
+    private static void append(File f, String s) throws IOException {
+        FileOutputStream fos = new FileOutputStream(f, true);
+        try {
+            fos.write(s.getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+    }
+
+    @Test
+    public void testCompressedInput() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(4);
+        for (int i = 0; i < 20000; i++) {
+            sb.append(i).append(random.nextInt()).append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        String contents = sb.toString();
+        List<String> expected = readLines(contents);
+        byte[] bytes = contents.getBytes("UTF-8");
+        int half = bytes.length / 2;
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        // two members
+        for (int[] range : new int[][]{{0, half}, {half, bytes.length}}) {
+            GZIPOutputStream gos = new GZIPOutputStream(gzip);
+            gos.write(bytes, range[0], range[1] - range[0]);
+            gos.finish();
+        }
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(zip);
+        zos.putNextEntry(new ZipEntry("dir/"));
+        zos.putNextEntry(new ZipEntry("dir/1.txt"));
+        zos.write(bytes, 0, half);
+        zos.putNextEntry(new ZipEntry("dir/2.txt"));
+        zos.write(bytes, half, bytes.length - half);
+        zos.close();
+        ByteArrayOutputStream bgzf = new ByteArrayOutputStream();
+        for (int i = 0; i < bytes.length; i += 60000) {
+            writeBgzfMember(bgzf, bytes, i, Math.min(60000, bytes.length - i));
+        }
+        writeBgzfMember(bgzf, bytes, 0, 0);
+        // BGZF members followed by a plain gzip one
+        ByteArrayOutputStream mixed = new ByteArrayOutputStream();
+        writeBgzfMember(mixed, bytes, 0, 60000);
+        GZIPOutputStream gos = new GZIPOutputStream(mixed);
+        gos.write(bytes, 60000, bytes.length - 60000);
+        gos.finish();
+
+        for (byte[] compressed : new byte[][]{gzip.toByteArray(), zip.toByteArray(), bgzf.toByteArray(), mixed.toByteArray()}) {
+            File f = File.createTempFile("LineReaderTest", ".gz");
+            f.deleteOnExit();
+            FileOutputStream fos = new FileOutputStream(f);
+            fos.write(compressed);
+            fos.close();
+            BatchLineReader lr = new BatchLineReader(f, expected.size());
+            lr.setBatchSize(100, Long.MAX_VALUE);
+            lr.run();
+            assertEquals(expected, lr.lines);
+            lr = new BatchLineReader(new ByteArrayInputStream(compressed), expected.size());
+            lr.setBatchSize(100, Long.MAX_VALUE);
+            lr.setDetectCompression(true);
+            lr.run();
+            assertEquals(expected, lr.lines);
+        }
+        // streams are processed as given unless requested
+        final int[] count = new int[1];
+        LineReader raw = new LineReader(new ByteArrayInputStream(gzip.toByteArray()), "ISO-8859-1") {
+            @Override
+            protected void processLine(String line) throws Exception {
+                count[0]++;
+            }
+
+            @Override
+            protected void onExceptionFound(Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        };
+        raw.run();
+        assertTrue(count[0] < expected.size());
+    }
+
+    private static void writeBgzfMember(ByteArrayOutputStream os, byte[] b, int off, int len) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(b, off, len);
+        deflater.finish();
+        byte[] data = new byte[len + 1024];
+        int dataLength = deflater.deflate(data);
+        deflater.end();
+        CRC32 crc = new CRC32();
+        crc.update(b, off, len);
+        ByteBuffer bb = ByteBuffer.allocate(18 + dataLength + 8).order(ByteOrder.LITTLE_ENDIAN);
+        bb.put((byte) 0x1f).put((byte) 0x8b).put((byte) 8).put((byte) 4).putInt(0).put((byte) 0).put((byte) 0xff);
+        bb.putShort((short) 6).put((byte) 'B').put((byte) 'C').putShort((short) 2).putShort((short) (bb.capacity() - 1));
+        bb.put(data, 0, dataLength).putInt((int) crc.getValue()).putInt(len);
+        os.write(bb.array());
+    }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import org.brutusin.commons.utils.Miscellaneous;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MultiFileProcessorTest {
+
+    @Test
+    public void testRun() throws Exception {
+        List<File> files = new ArrayList<File>();
+        long expectedLines = 0;
+        long expectedSum = 0;
+        for (int i = 0; i < 30; i++) {
+            File f = File.createTempFile("MultiFileProcessorTest", ".txt");
+            f.deleteOnExit();
+            StringBuilder sb = new StringBuilder();
+            int lines = i == 0 ? 5000 : i;
+            for (int j = 0; j < lines; j++) {
+                sb.append(j).append('\n');
+                expectedSum += j;
+            }
+            expectedLines += lines;
+            Miscellaneous.writeStringToFile(f, sb.toString(), "UTF-8");
+            files.add(f);
+        }
+        // compressed, processed whole
+        File gz = File.createTempFile("MultiFileProcessorTest", ".gz");
+        gz.deleteOnExit();
+        GZIPOutputStream gos = new GZIPOutputStream(new FileOutputStream(gz));
+        try {
+            for (int j = 0; j < 3000; j++) {
+                gos.write((j + "\n").getBytes("UTF-8"));
+                expectedSum += j;
+            }
+        } finally {
+            gos.close();
+        }
+        expectedLines += 3000;
+        files.add(gz);
+        final AtomicLong lines = new AtomicLong();
+        final AtomicLong sum = new AtomicLong();
+        final ConcurrentHashMap<FileChunk, Boolean> finished = new ConcurrentHashMap<FileChunk, Boolean>();
+        MultiFileProcessor mfp = new MultiFileProcessor(4, 1000);
+        LineReaderFactory factory = new LineReaderFactory() {
+            public LineReader newLineReader(FileChunk chunk) {
+                if (chunk.isWholeFile()) {
+                    return new SumLineReader(chunk.getFile(), chunk, lines, sum, finished);
+                }
+                return new SumLineReader(chunk, lines, sum, finished);
+            }
+        };
+        mfp.run(files, "UTF-8", factory);
+        assertEquals(expectedLines, lines.get());
+        assertEquals(expectedSum, sum.get());
+        assertTrue(finished.size() > files.size());
+        assertEquals(files.size(), mfp.getFilesCompleted());
+        assertEquals(mfp.getTotalBytes(), mfp.getBytesProcessed());
+
+        // the pool is reused
+        lines.set(0);
+        sum.set(0);
+        finished.clear();
+        mfp.run(files, "UTF-8", factory);
+        assertEquals(expectedLines, lines.get());
+        assertEquals(expectedSum, sum.get());
+        assertEquals(2 * files.size(), mfp.getFilesCompleted());
+    }
+
+    private static class SumLineReader extends LineReader {
+
+        private final FileChunk chunk;
+        private final AtomicLong lines;
+        private final AtomicLong sum;
+        private final ConcurrentHashMap<FileChunk, Boolean> finished;
+
+        public SumLineReader(FileChunk chunk, AtomicLong lines, AtomicLong sum, ConcurrentHashMap<FileChunk, Boolean> finished) {
+            super(chunk, "UTF-8");
+            this.chunk = chunk;
+            this.lines = lines;
+            this.sum = sum;
+            this.finished = finished;
+        }
+
+        public SumLineReader(File file, FileChunk chunk, AtomicLong lines, AtomicLong sum, ConcurrentHashMap<FileChunk, Boolean> finished) {
+            super(file, "UTF-8");
+            this.chunk = chunk;
+            this.lines = lines;
+            this.sum = sum;
+            this.finished = finished;
+        }
+
+        @Override
+        protected void processLine(String line) throws Exception {
+            lines.incrementAndGet();
+            sum.addAndGet(Long.parseLong(line));
+        }
+
+        @Override
+        protected void onExceptionFound(Exception ex) {
+            throw new RuntimeException(ex);
+        }
+
+        @Override
+        protected void onFinish() {
+            assertNull(finished.put(chunk, true));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testError() throws Exception {
+        List<File> files = new ArrayList<File>();
+        File f = File.createTempFile("MultiFileProcessorTest", ".txt");
+        f.deleteOnExit();
+        files.add(f);
+        files.add(new File(f.getPath() + ".missing"));
+        new MultiFileProcessor(2, 1000).run(files, "UTF-8", new LineReaderFactory() {
+            public LineReader newLineReader(FileChunk chunk) {
+                return new LineReader(chunk, "UTF-8") {
+                    @Override
+                    protected void processLine(String line) throws Exception {
+                    }
+
+                    @Override
+                    protected void onExceptionFound(Exception ex) {
+                    }
+                };
+            }
+        });
+    }
+
+    @Test
+    public void testErrorThenReuse() throws Exception {
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 2; i++) {
+            File f = File.createTempFile("MultiFileProcessorTest", ".txt");
+            f.deleteOnExit();
+            Miscellaneous.writeStringToFile(f, "1\n2\n3\n", "UTF-8");
+            files.add(f);
+        }
+        final File failing = files.get(0);
+        final AtomicLong lines = new AtomicLong();
+        LineReaderFactory factory = new LineReaderFactory() {
+            public LineReader newLineReader(final FileChunk chunk) {
+                return new LineReader(chunk, "UTF-8") {
+                    @Override
+                    protected void processLine(String line) throws Exception {
+                        if (chunk.getFile().equals(failing)) {
+                            Thread.currentThread().interrupt();
+                        }
+                        lines.incrementAndGet();
+                    }
+
+                    @Override
+                    protected void onExceptionFound(Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                };
+            }
+        };
+        // single thread, reused by the second run
+        MultiFileProcessor mfp = new MultiFileProcessor(1, 1000);
+        try {
+            mfp.run(files.subList(0, 1), "UTF-8", factory);
+            fail();
+        } catch (InterruptedException ex) {
+            // expected
+        }
+        assertFalse(Thread.currentThread().isInterrupted());
+        lines.set(0);
+        mfp.run(files.subList(1, 2), "UTF-8", factory);
+        assertEquals(3, lines.get());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TeeOutputStreamTest {
+
+    private static byte[] randomBytes(int length) {
+        byte[] ret = new byte[length];
+        new Random(4).nextBytes(ret);
+        return ret;
+    }
+
+    /**
+     * Sink that does not accept data until released.
+     */
+    private static final class GatedOutputStream extends ByteArrayOutputStream {
+
+        private final CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            try {
+                gate.await();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+            super.write(b, off, len);
+        }
+    }
+
+    private static void writeInPieces(OutputStream os, byte[] data, int piece) throws IOException {
+        for (int i = 0; i < data.length; i += piece) {
+            os.write(data, i, Math.min(piece, data.length - i));
+        }
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        byte[] data = randomBytes(1000 * 1000);
+        ByteArrayOutputStream os1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream os2 = new ByteArrayOutputStream();
+        TeeOutputStream tee = new TeeOutputStream(1000, TeeOutputStream.SlowSinkPolicy.BLOCK, os1, os2);
+        writeInPieces(tee, data, 777);
+        tee.flush();
+        assertEquals(0, tee.getSink(0).getLag());
+        assertTrue(Arrays.equals(data, os1.toByteArray()));
+        tee.close();
+        assertTrue(Arrays.equals(data, os2.toByteArray()));
+        assertEquals(data.length, tee.getSink(1).getBytesWritten());
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        byte[] data = randomBytes(100 * 1000);
+        ByteArrayOutputStream fast = new ByteArrayOutputStream();
+        GatedOutputStream slow = new GatedOutputStream();
+        TeeOutputStream tee = new TeeOutputStream(1000, TeeOutputStream.SlowSinkPolicy.DROP, fast, slow);
+        writeInPieces(tee, data, 100);
+        TeeOutputStream.Sink sink = tee.getSink(1);
+        assertTrue(sink.getBytesDropped() >= data.length - 2000);
+        assertTrue(sink.getMaxLag() <= 2000);
+        slow.gate.countDown();
+        tee.close();
+        for (int i = 0; i < tee.getSinkCount(); i++) {
+            assertEquals(data.length, tee.getSink(i).getBytesWritten() + tee.getSink(i).getBytesDropped());
+        }
+        assertEquals(tee.getSink(0).getBytesWritten(), fast.size());
+        assertEquals(sink.getBytesWritten(), slow.size());
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        byte[] data = randomBytes(500 * 1000);
+        ByteArrayOutputStream fast = new ByteArrayOutputStream();
+        GatedOutputStream slow = new GatedOutputStream();
+        TeeOutputStream tee = new TeeOutputStream(1000, TeeOutputStream.SlowSinkPolicy.SPILL, fast, slow);
+        writeInPieces(tee, data, 333);
+        TeeOutputStream.Sink sink = tee.getSink(1);
+        assertTrue(sink.getBytesSpilled() > 0);
+        assertTrue(sink.getLag() > 1000);
+        slow.gate.countDown();
+        tee.close();
+        assertTrue(Arrays.equals(data, fast.toByteArray()));
+        assertTrue(Arrays.equals(data, slow.toByteArray()));
+        assertEquals(0, sink.getBytesDropped());
+        assertEquals(0, sink.getLag());
+    }
+
+    @Test
+    public void testFailingSink() throws Exception {
+        byte[] data = randomBytes(100 * 1000);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken");
+            }
+        };
+        TeeOutputStream tee = new TeeOutputStream(1000, TeeOutputStream.SlowSinkPolicy.BLOCK, failing, os);
+        writeInPieces(tee, data, 500);
+        tee.flush();
+        assertNotNull(tee.getSink(0).getError());
+        assertTrue(Arrays.equals(data, os.toByteArray()));
+        try {
+            tee.close();
+            fail();
+        } catch (IOException ex) {
+            assertEquals("broken", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testNullSink() throws Exception {
+        int before = countSinkThreads();
+        try {
+            new TeeOutputStream(new ByteArrayOutputStream(), null);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            assertEquals("Sink 1 is null", ex.getMessage());
+        }
+        assertEquals(before, countSinkThreads());
+    }
+
+    private static int countSinkThreads() {
+        int ret = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("tee-sink-")) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MiscellaneousTest {
+
+    private static byte[] randomBytes(int length) {
+        byte[] ret = new byte[length];
+        new Random(3).nextBytes(ret);
+        return ret;
+    }
+
+    @Test
+    public void testPipeSynchronously() throws Exception {
+        byte[] data = randomBytes(300 * 1024);
+        data[10] = 0;
+        ByteArrayOutputStream os1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream os2 = new ByteArrayOutputStream();
+        long count = Miscellaneous.pipeSynchronously(new ByteArrayInputStream(data), true, os1, null, os2);
+        assertEquals(data.length, count);
+        assertTrue(Arrays.equals(data, os1.toByteArray()));
+        assertTrue(Arrays.equals(data, os2.toByteArray()));
+    }
+
+    @Test
+    public void testPipeSynchronouslyFiles() throws Exception {
+        byte[] data = randomBytes(1024 * 1024 + 17);
+        File src = File.createTempFile("MiscellaneousTest", ".src");
+        src.deleteOnExit();
+        File dst = File.createTempFile("MiscellaneousTest", ".dst");
+        dst.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(src);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        FileInputStream fis = new FileInputStream(src);
+        assertEquals(5, fis.read(new byte[5]));
+        long count = Miscellaneous.pipeSynchronously(fis, true, new FileOutputStream(dst));
+        assertEquals(data.length - 5, count);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 5, data.length), readFile(dst)));
+    }
+
+    @Test
+    public void testPipeAsync() throws Exception {
+        byte[] data = randomBytes(100 * 1024);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        CompletableFuture<Long> future = Miscellaneous.pipeAsync(new ByteArrayInputStream(data), true, os);
+        assertEquals(data.length, future.get().longValue());
+        assertTrue(Arrays.equals(data, os.toByteArray()));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            InputStream failing = new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new IOException("broken");
+                }
+            };
+            future = Miscellaneous.pipeAsync(executor, failing, true, new ByteArrayOutputStream());
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException ex) {
+                assertEquals("broken", ex.getCause().getMessage());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FileInputStream fis = new FileInputStream(f);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = fis.read(buffer)) != -1) {
+                baos.write(buffer, 0, n);
+            }
+        } finally {
+            fis.close();
+        }
+        return baos.toByteArray();
+    }
+}
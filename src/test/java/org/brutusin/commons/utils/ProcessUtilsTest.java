@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 brutusin.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.commons.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ProcessUtilsTest {
+
+    @Test
+    public void testLargeOutput() throws Exception {
+        final long[] count = new long[1];
+        OutputStream counter = new OutputStream() {
+            @Override
+            public void write(int b) {
+                count[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                count[0] += len;
+            }
+        };
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        ProcessBuilder pb = new ProcessBuilder("sh", "-c", "head -c 1000000 /dev/zero; head -c 300000 /dev/zero >&2");
+        ProcessUtils.executeProcess(pb, counter, err, 100, 30, TimeUnit.SECONDS);
+        assertEquals(1000000, count[0]);
+        assertEquals(300000, err.size());
+        assertEquals("1", ProcessUtils.executeProcess("sh", "-c", "echo 1"));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        ProcessBuilder pb = new ProcessBuilder("sh", "-c", "i=0; while [ $i -lt 1000 ]; do echo error $i >&2; i=$((i+1)); done; exit 3");
+        try {
+            ProcessUtils.executeProcess(pb, null, null, 20, 0, null);
+            fail();
+        } catch (ProcessException ex) {
+            assertEquals(3, ex.getRetCode());
+            assertEquals("Process returned code: 3.\nerror 998\nerror 999\n", ex.getMessage());
+        }
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testTimeout() throws Exception {
+        ProcessUtils.executeProcess(new ProcessBuilder("sleep", "10"), null, null, 0, 100, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(timeout = 30000)
+    public void testFailingSink() throws Exception {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Sink failure");
+            }
+        };
+        // endless output, not drained once the sink fails
+        ProcessBuilder pb = new ProcessBuilder("cat", "/dev/zero");
+        try {
+            ProcessUtils.executeProcess(pb, failing, null, 0, 0, null);
+            fail();
+        } catch (IOException ex) {
+            assertEquals("Sink failure", ex.getMessage());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTimeoutWithoutUnit() throws Exception {
+        ProcessUtils.executeProcess(new ProcessBuilder("true"), null, null, 0, 100, null);
+    }
+}